@@ -0,0 +1,94 @@
+package com.spillman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a group of independent calls at the same time and waits for all of them.
+ * If any call fails, or the deadline passes, the calls that are still running
+ * are cancelled and the failure is thrown from join().
+ *
+ * All groups share one fixed pool of daemon threads, so a large project can't
+ * start an unbounded number of threads.
+ */
+public class FanOut {
+	private static ExecutorService executor = null;
+
+	private CompletionService<Object> completion;
+	private List<Future<?>> forks = new ArrayList<Future<?>>();
+
+	public FanOut() {
+		this.completion = new ExecutorCompletionService<Object>(getExecutor());
+	}
+
+	/**
+	 * Sets the number of threads shared by all groups. Must be called before the first group is created.
+	 */
+	public static synchronized void setThreads(int threads) {
+		if (executor == null) {
+			final AtomicInteger threadNumber = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "fan-out-" + threadNumber.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			setThreads(Runtime.getRuntime().availableProcessors());
+		}
+		return executor;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> Future<T> fork(Callable<T> call) {
+		Future<T> future = (Future<T>) completion.submit((Callable<Object>) call);
+		forks.add(future);
+		return future;
+	}
+
+	/**
+	 * Waits for every forked call to finish. Throws the first failure (unwrapped from the
+	 * ExecutionException) or a TimeoutException if they don't all finish within timeoutMillis.
+	 */
+	public void join(long timeoutMillis) throws Exception {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			for (int done = 0; done < forks.size(); done++) {
+				long remaining = deadline - System.currentTimeMillis();
+				Future<Object> next = completion.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+				if (next == null) {
+					throw new TimeoutException("Calls didn't finish within " + timeoutMillis + "ms");
+				}
+				next.get();
+			}
+		} catch (ExecutionException e) {
+			cancelAll();
+			throw (e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+		} catch (TimeoutException | InterruptedException e) {
+			cancelAll();
+			throw e;
+		}
+	}
+
+	private void cancelAll() {
+		for (Future<?> f : forks) {
+			f.cancel(true);
+		}
+	}
+}
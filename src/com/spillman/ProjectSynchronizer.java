@@ -2,9 +2,22 @@ package com.spillman;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.spillman.common.Account;
 import com.spillman.common.Opportunity;
@@ -17,8 +30,8 @@ import com.spillman.crm.CRMClient;
 import com.spillman.crm.CRMException;
 import com.spillman.jira.JiraClient;
 import com.spillman.jira.JiraException;
-import com.spillman.jira.JiraIssueNotFoundException;
 import com.spillman.jira.MissingDevTeamException;
+import com.spillman.jira.ProjectRead;
 import com.spillman.workfront.Workfront;
 import com.spillman.workfront.WorkfrontClient;
 import com.spillman.workfront.WorkfrontException;
@@ -40,7 +53,20 @@ public class ProjectSynchronizer {
 	private static CRMClient crmClient = null;
 	private static HashMap<String, Project> activeProjects = null;
 	private static HashMap<String, Request> activeRequests = null;
+	
+	// The active projects and requests whose opportunities need to be synced this cycle
+	private static Set<OpportunityHolder> opportunityChanges = Collections.emptySet();
+	
+	// Epics and new worklog entries read for all projects at the start of the cycle, hashed by Jira project ID
+	private static Map<String, ArrayList<Task>> portfolioEpics = Collections.emptyMap();
+	private static Map<String, ArrayList<WorkLog>> portfolioWorkLog = Collections.emptyMap();
+	
+	// The last time anything changed in Jira for each project, as of this cycle, and
+	// as of the last time each project was synced. Hashed by Jira project ID.
+	private static Map<String, Date> jiraLastChanges = Collections.emptyMap();
+	private static Map<String, Date> jiraWatermarks = new ConcurrentHashMap<String, Date>();
 	private static HashMap<String,String> wfPilotAgencies = null;
+	private static ExecutorService projectExecutor = null;
 	
 	public static void main(String[] args) {
 		logger.info("Starting Project Synchronizer");
@@ -104,11 +130,28 @@ public class ProjectSynchronizer {
 		// Initialize the CRM client
 		logger.debug("Initializing CRM...");
 		try {
-			crmClient = new CRMClient(properties.getCRMJDBCConnectionString());
+			crmClient = new CRMClient(properties);
 		} catch (CRMException e) {
 			logger.fatal(FATAL_ERROR_MESSAGE, e);
 			System.exit(-1);
 		}
+		
+		// Reads from Jira within a project are spread across this many threads
+		FanOut.setThreads(properties.getJiraReadThreads());
+		
+		// If more than one sync thread was requested, sync projects in parallel
+		int threads = properties.getSyncThreads();
+		if (threads > 1) {
+			logger.debug("Syncing projects on {} threads", threads);
+			final AtomicInteger threadNumber = new AtomicInteger();
+			projectExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "project-sync-" + threadNumber.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
 	}
 
 	
@@ -120,8 +163,16 @@ public class ProjectSynchronizer {
 			logger.debug(">>>>> Start Sync Cycle <<<<<");
 
 			currentTimestamp = new Date();
+			try {
+				crmClient.startCycle(lastSyncTimestamp);
+			} catch (CRMException e) {
+				logger.fatal(FATAL_ERROR_MESSAGE, e);
+				System.exit(-1);
+			}
 
 			synchronizeCustomFields(lastSyncTimestamp, currentTimestamp);
+			updateActiveLists(lastSyncTimestamp, currentTimestamp);
+			preloadOpportunities();
 			synchronizeProjects(lastSyncTimestamp, currentTimestamp);
 			syncrhonizeRequests(lastSyncTimestamp, currentTimestamp);
 			
@@ -148,10 +199,15 @@ public class ProjectSynchronizer {
 	
 	private static void synchronizeCustomFields(Date lastSyncTimestamp,	Date currentTimestamp) {
 		try {
+			// Catch up the opportunity references with the projects and requests,
+			// active or not, changed since the last cycle, so removing closed
+			// opportunities doesn't need to search Workfront
+			workfrontClient.refreshOpportunityReferences(lastSyncTimestamp, currentTimestamp);
 			workfrontClient.removeOpportunities(crmClient.getClosedOpportunities(lastSyncTimestamp));
 			workfrontClient.addOpportunities(crmClient.getNewOpportunities(lastSyncTimestamp));
 			workfrontClient.addAccounts(crmClient.getNewAccounts(lastSyncTimestamp));
 			syncPilotAgencies();
+			flushWorkfrontWrites();
 		} catch (WorkfrontException | CRMException | JiraException e) {
 			logger.fatal(FATAL_ERROR_MESSAGE, e);
 			System.exit(-1);
@@ -159,29 +215,55 @@ public class ProjectSynchronizer {
 		
 	}
 
-	private static void synchronizeProjects(Date lastSyncTimestamp, Date currentSyncTimestamp) {
+	/**
+	 * Updates the lists of active projects and requests from Workfront.
+	 */
+	private static void updateActiveLists(Date lastSyncTimestamp, Date currentSyncTimestamp) {
 		try {
 			// TODO: Now that we are syncing opportunities on projects, we need to sync all projects
 			// that have an opportunity.
 			activeProjects = workfrontClient.updateProjectList(activeProjects, lastSyncTimestamp, currentSyncTimestamp);
+			activeRequests = workfrontClient.getActiveRequests(activeRequests, lastSyncTimestamp, currentSyncTimestamp);
+			workfrontClient.updateOpportunityReferences(activeProjects.values());
+			workfrontClient.updateOpportunityReferences(activeRequests.values());
+		} catch (WorkfrontException e) {
+			logger.fatal(FATAL_ERROR_MESSAGE, e);
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Finds the active projects and requests whose opportunities have changed,
+	 * and reads the opportunities they reference from CRM up front instead of
+	 * one query per project or request.
+	 */
+	private static void preloadOpportunities() {
+		List<OpportunityHolder> holders = new ArrayList<OpportunityHolder>();
+		holders.addAll(activeProjects.values());
+		holders.addAll(activeRequests.values());
+		
+		Set<OpportunityHolder> changed = Collections.newSetFromMap(new IdentityHashMap<OpportunityHolder, Boolean>());
+		changed.addAll(crmClient.getChangedHolders(holders));
+		opportunityChanges = changed;
+		try {
+			crmClient.preloadOpportunities(changed);
+		} catch (CRMException e) {
+			logger.fatal(FATAL_ERROR_MESSAGE, e);
+			System.exit(-1);
+		}
+	}
+
+	private static void synchronizeProjects(Date lastSyncTimestamp, Date currentSyncTimestamp) {
+		try {
+			readPortfolio(currentSyncTimestamp);
+			
+			if (projectExecutor != null) {
+				synchronizeProjectsInParallel(lastSyncTimestamp, currentSyncTimestamp);
+				return;
+			}
 			
 			for (Project project : activeProjects.values()) {
-				
-				// If we are syncing this project with Jira...
-				if (project.isSyncWithJira()) {
-
-					// Add new projects to Jira
-					if (!project.hasJiraProjectID()) {
-						createJiraProject(project);
-					}
-
-					// Sync Jira issues and worklog with Workfront
-					syncTasks(project, lastSyncTimestamp, currentSyncTimestamp);
-					syncWorkLog(project, currentSyncTimestamp);
-				}
-
-				// Sync the opportunities
-				syncOpportunity(project);
+				syncProject(project, lastSyncTimestamp, currentSyncTimestamp);
 			}
 		}
 		catch (WorkfrontException | JiraException | CRMException e) {
@@ -190,19 +272,176 @@ public class ProjectSynchronizer {
 		}
 	}
 	
-	private static void syncrhonizeRequests(Date lastSyncTimestamp, Date currentTimestamp) {
-		List<String> requestsToDelete = new ArrayList<String>();
+	/**
+	 * Reads the epics and new worklog entries of every project that's synced
+	 * with Jira in one query each, rather than two queries per project.
+	 */
+	private static void readPortfolio(Date currentSyncTimestamp) throws JiraException {
+		List<String> syncedIDs = new ArrayList<String>();
+		for (Project project : activeProjects.values()) {
+			if (project.isSyncWithJira() && project.hasJiraProjectID()) {
+				syncedIDs.add(project.getJiraProjectID());
+			}
+		}
+		
+		// Find out which projects have changed in Jira since they were last synced
+		jiraLastChanges = syncedIDs.isEmpty() ? Collections.<String, Date>emptyMap() : jiraClient.getLastChanges(syncedIDs);
+		
+		// Projects whose worklog is backfilled read it a window at a time later
+		List<Project> projects = new ArrayList<Project>();
+		List<String> projectIDs = new ArrayList<String>();
+		for (Project project : activeProjects.values()) {
+			if (project.isSyncWithJira() && project.hasJiraProjectID() && jiraChanged(project)) {
+				if (!needsWorkLogBackfill(project, currentSyncTimestamp)) {
+					projects.add(project);
+				}
+				projectIDs.add(project.getJiraProjectID());
+			}
+		}
+		logger.debug("{} of {} Jira projects have changed", projectIDs.size(), syncedIDs.size());
+		
+		portfolioEpics = projectIDs.isEmpty() ? Collections.<String, ArrayList<Task>>emptyMap()
+				: jiraClient.getEpics(projectIDs);
+		portfolioWorkLog = projects.isEmpty() ? Collections.<String, ArrayList<WorkLog>>emptyMap() 
+				: jiraClient.getWorkLogEntries(projects, currentSyncTimestamp);
+	}
+	
+	/*
+	 * A project's worklog is backfilled if it has never been synced, or it was
+	 * last synced more than one backfill window ago.
+	 */
+	private static boolean needsWorkLogBackfill(Project project, Date currentSyncTimestamp) {
+		return project.getLastJiraSync() == null
+				|| currentSyncTimestamp.getTime() - project.getLastJiraSync().getTime() > properties.getJiraBackfillWindow();
+	}
+	
+	/*
+	 * A project needs to be compared with Jira if its tasks were reloaded from Workfront,
+	 * it hasn't been synced yet, or something changed in Jira since it was last synced.
+	 */
+	private static boolean jiraChanged(Project project) {
+		if (project.isJiraSyncNeeded()) {
+			return true;
+		}
+		Date synced = jiraWatermarks.get(project.getJiraProjectID());
+		Date changed = jiraLastChanges.get(project.getJiraProjectID());
+		return synced == null || changed == null || !synced.equals(changed);
+	}
+	
+	/*
+	 * Records that the project is up to date with Jira. If Jira changed after the
+	 * current sync time, those changes weren't included in this sync, so the
+	 * watermark isn't moved and the project is synced again next cycle.
+	 */
+	private static void markJiraSynced(Project project, Date currentSyncTimestamp) {
+		project.setJiraSyncNeeded(false);
+		Date changed = jiraLastChanges.get(project.getJiraProjectID());
+		if (changed != null && changed.before(currentSyncTimestamp)) {
+			jiraWatermarks.put(project.getJiraProjectID(), changed);
+		}
+		else {
+			jiraWatermarks.remove(project.getJiraProjectID());
+		}
+	}
+	
+	private static void synchronizeProjectsInParallel(final Date lastSyncTimestamp, final Date currentSyncTimestamp) {
+		HashMap<Project, Future<Void>> results = new HashMap<Project, Future<Void>>();
+		for (final Project project : activeProjects.values()) {
+			results.put(project, projectExecutor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					syncProject(project, lastSyncTimestamp, currentSyncTimestamp);
+					return null;
+				}
+			}));
+		}
+		
+		// Wait for every project to finish. A project that fails is logged and
+		// skipped for this cycle; it doesn't stop the other projects.
+		int failures = 0;
+		for (Map.Entry<Project, Future<Void>> result : results.entrySet()) {
+			try {
+				result.getValue().get();
+			} catch (ExecutionException e) {
+				failures++;
+				logger.error("Unable to sync project '{}'", result.getKey().getName(), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.catching(e);
+				return;
+			}
+		}
 		
-		// Update the list of active requests
+		if (failures > 0) {
+			logger.error("{} of {} projects failed to sync this cycle", failures, results.size());
+		}
+	}
+	
+	private static void syncProject(Project project, Date lastSyncTimestamp, Date currentSyncTimestamp) throws WorkfrontException, JiraException, CRMException {
+		// If the sync fails part way through, throw away the writes it queued so
+		// they aren't sent, and blamed, with the next project on this thread.
 		try {
-			activeRequests = workfrontClient.getActiveRequests(activeRequests, lastSyncTimestamp, currentTimestamp);
-		} catch (WorkfrontException e) {
-			logger.fatal(FATAL_ERROR_MESSAGE, e);
-			System.exit(-1);
+			boolean jiraSynced = false;
+		
+			// If we are syncing this project with Jira...
+			if (project.isSyncWithJira()) {
+
+				// Add new projects to Jira
+				if (!project.hasJiraProjectID()) {
+					createJiraProject(project);
+				}
+
+				// Sync Jira issues and worklog with Workfront. New tasks are always
+				// added to Jira, but the rest is skipped if nothing has changed.
+				if (project.hasJiraProjectID()) {
+					List<Task> updatedTasks = createNewIssues(project);
+					if (jiraChanged(project)) {
+						boolean backfill = needsWorkLogBackfill(project, currentSyncTimestamp);
+						JiraSnapshot jira = readJira(project, currentSyncTimestamp, updatedTasks, backfill);
+						// If a task couldn't be updated the watermark isn't moved, so
+						// its issue is read again next cycle
+						jiraSynced = syncTasks(project, updatedTasks, jira);
+						if (backfill) {
+							backfillWorkLog(project, currentSyncTimestamp);
+						} else {
+							syncWorkLog(project, jira.worklog, currentSyncTimestamp);
+						}
+					}
+					else {
+						syncTasks(project, updatedTasks, null);
+					}
+				}
+			}
+
+			// Sync the opportunities
+			boolean opportunityChanged = opportunityChanges.contains(project);
+			if (opportunityChanged) {
+				syncOpportunity(project);
+			}
+		
+			// Send any writes that were queued up while syncing this project
+			flushWorkfrontWrites();
+		
+			if (opportunityChanged) {
+				crmClient.markSynced(project);
+			}
+			if (jiraSynced) {
+				markJiraSynced(project, currentSyncTimestamp);
+			}
+		} finally {
+			workfrontClient.discardWrites();
 		}
+	}
+	
+	private static void syncrhonizeRequests(Date lastSyncTimestamp, Date currentTimestamp) {
+		List<String> requestsToDelete = new ArrayList<String>();
 		
-		// Sync each request
+		// Sync each request whose opportunities have changed
+		List<Request> synced = new ArrayList<Request>();
 		for (Request request : activeRequests.values()) {
+			if (!opportunityChanges.contains(request)) {
+				continue;
+			}
+			synced.add(request);
 			try {
 				syncOpportunity(request);
 			} catch (WorkfrontException e) {
@@ -222,12 +461,35 @@ public class ProjectSynchronizer {
 				System.exit(-1);
 			}
 		}
+		
+		// Send any opportunity updates that were queued up. When writes are batched
+		// requests that no longer exist show up here instead of in the loop above.
+		try {
+			for (Map.Entry<String, WorkfrontException> failure : workfrontClient.flushWrites().entrySet()) {
+				WorkfrontException e = failure.getValue();
+				if (activeRequests.containsKey(failure.getKey()) 
+						&& e.getMessageKey() != null && e.getMessageKey().equals(Workfront.RECORD_NOT_FOUND)) {
+					requestsToDelete.add(failure.getKey());
+				} else {
+					throw e;
+				}
+			}
+		} catch (WorkfrontException e) {
+			logger.fatal(FATAL_ERROR_MESSAGE, e);
+			System.exit(-1);
+		}
 
 		// If we ran across any requests that have been deleted
 		// remove them from our list.
 		for (String id : requestsToDelete) {
 			activeRequests.remove(id);
 		}
+		
+		for (Request request : synced) {
+			if (activeRequests.containsKey(request.getWorkfrontRequestID())) {
+				crmClient.markSynced(request);
+			}
+		}
 	}
 
 	private static void syncPilotAgencies() throws JiraException, WorkfrontException {
@@ -252,7 +514,8 @@ public class ProjectSynchronizer {
 	}
 
 
-	private static void createJiraProject(Project project) throws JiraException,	WorkfrontException {
+	// Synchronized so two new projects can't pick the same unused Jira key at the same time
+	private static synchronized void createJiraProject(Project project) throws JiraException,	WorkfrontException {
 		logger.debug("Creating project '{}' in Jira...", project.getName());
 		project.setJiraDevTeam(properties.lookupDevTeam(project.getWorkfrontProgram()));
 		if (project.getVersions() == null) 
@@ -288,9 +551,8 @@ public class ProjectSynchronizer {
 		}
 	}
 
-	private static void syncWorkLog(Project project, Date currentSyncTimestamp) throws JiraException, WorkfrontException {
+	private static void syncWorkLog(Project project, ArrayList<WorkLog> worklog, Date currentSyncTimestamp) throws JiraException, WorkfrontException {
 		logger.debug("Syncing worklogs for project {}", project.getName());
-		ArrayList<WorkLog> worklog = jiraClient.getWorkLogEntries(project, project.getLastJiraSync(), currentSyncTimestamp);
 		
 		for (WorkLog wl : worklog) {
 			logger.debug("Adding worklog entry for task '{}'...", wl.getJiraIssuenum());
@@ -303,62 +565,97 @@ public class ProjectSynchronizer {
 		}
 		
 		// If we processed some worklog entries, update the "Last Jira Sync"
-		// custom field in the Workfront project
+		// custom field in the Workfront project. Make sure any queued hours
+		// have made it to Workfront first.
 		if (worklog.size() > 0) {
+			flushWorkfrontWrites();
+			project.setLastJiraSync(currentSyncTimestamp);
+			workfrontClient.updateLastJiraSync(project);
+		}
+	}
+	
+	/*
+	 * Copies a project's worklog history to Workfront one window of time at a time,
+	 * starting from its last Jira sync (or its first worklog entry). Only one window
+	 * of entries is held in memory at once, and the "Last Jira Sync" field is moved
+	 * to the end of each window once its hours are in Workfront, so if the sync
+	 * stops part way through, it carries on from there the next time.
+	 */
+	private static void backfillWorkLog(Project project, Date currentSyncTimestamp) throws JiraException, WorkfrontException {
+		Date start = jiraClient.getFirstWorkLogTime(project, project.getLastJiraSync(), currentSyncTimestamp);
+		if (start == null) {
+			logger.debug("No worklog to backfill for project {}", project.getName());
+		} else {
+			logger.info("Backfilling worklog for project {} from {}", project.getName(), start);
+			long window = properties.getJiraBackfillWindow();
+			while (start.before(currentSyncTimestamp)) {
+				Date end = new Date(Math.min(start.getTime() + window, currentSyncTimestamp.getTime()));
+				ArrayList<WorkLog> worklog = jiraClient.getWorkLogEntries(project, start, end);
+				syncWorkLog(project, worklog, end);
+				start = end;
+			}
+		}
+		
+		// The last windows, or all of them, may have been empty. Move the "Last
+		// Jira Sync" field anyway, so a project that had no worklog for a while
+		// isn't backfilled again every cycle.
+		if (!currentSyncTimestamp.equals(project.getLastJiraSync())) {
 			project.setLastJiraSync(currentSyncTimestamp);
 			workfrontClient.updateLastJiraSync(project);
 		}
 	}
 	
-	private static void syncTasks(Project project, Date lastSyncTimestamp, Date currentSyncTimestamp) throws WorkfrontException, JiraException {
+	private static void flushWorkfrontWrites() throws WorkfrontException {
+		Map<String, WorkfrontException> failures = workfrontClient.flushWrites();
+		if (!failures.isEmpty()) {
+			// Only the first failure is thrown, so make sure the rest are seen too
+			for (Map.Entry<String, WorkfrontException> failure : failures.entrySet()) {
+				logger.error("Workfront write for {} failed", failure.getKey(), failure.getValue());
+			}
+			throw failures.values().iterator().next();
+		}
+	}
+	
+	/*
+	 * If jira is null nothing has changed in Jira, so only the new tasks are updated.
+	 * Returns false if any of the tasks couldn't be updated in Workfront.
+	 */
+	private static boolean syncTasks(Project project, List<Task> updatedTasks, JiraSnapshot jira) throws WorkfrontException, JiraException {
 		logger.debug("Syncing tasks for project {}", project.getName());
 		
-		// First, go through all the tasks we found in Workfront and make sure they
+		// Go through all the tasks we found in Workfront and make sure they
 		// are up to date with Jira.
 		for (Task task : project.getWorkfrontDevTasks().values()) {
-
-			// Skip any tasks that aren't marked to sync with Jira
-			if (!task.isSyncWithJira()) {
+			Task jiraIssue = jira == null ? null : jira.issues.get(task.getWorkfrontTaskID());
+			if (jiraIssue == null) {
+				// Either nothing changed in Jira, the task isn't synced with Jira,
+				// it was only just added to Jira, or the issue couldn't be found.
 				continue;
 			}
 			
-			if (task.getJiraIssueID() == null || task.getJiraIssueID().isEmpty()) {
-				try {
-					// This is a new task. Add it to Jira.
-					jiraClient.createIssue(project, task);
-	
-					// Then update the Workfront task with the Jira issue ID and URL
-					workfrontClient.updateTask(project, task);
-					project.addDevTask(task);
-				}
-				catch (JiraException | WorkfrontException e) {
-					logger.catching(e);
-				}
+			if (!jiraIssue.equals(task)) {
+				logger.debug("Updating task '{}'...", task.getJiraIssueID());
+				jiraIssue.setWorkfrontTaskID(task.getWorkfrontTaskID());
+				updatedTasks.add(jiraIssue);
 			}
 			else {
-				// This task is already in Jira. Query Jira to see if we need to update the task.
-				Task jiraIssue;
-				try {
-					jiraIssue = jiraClient.getIssue(task);
-					if (!jiraIssue.equals(task)) {
-						logger.debug("Updating task '{}'...", task.getJiraIssueID());
-						jiraIssue.setWorkfrontTaskID(task.getWorkfrontTaskID());
-						workfrontClient.updateTask(project, jiraIssue);
-						// replace the current task with the new updated task.
-						project.addDevTask(jiraIssue);
-					}
-					else {
-						logger.debug("Task {} hasn't changed", task.getJiraIssueID());
-					}
-				} catch (JiraIssueNotFoundException e) {
-					logger.catching(e);
-				}
+				logger.debug("Task {} hasn't changed", task.getJiraIssueID());
 			}
 		}
 		
+		// Update all the changed tasks in Workfront at once, then
+		// replace the current tasks with the tasks that were written.
+		List<Task> written = workfrontClient.updateTasks(project, updatedTasks);
+		for (Task task : written) {
+			project.addDevTask(task);
+		}
+		boolean allWritten = written.size() == updatedTasks.size();
+		
 		// Then, look for new epics in Jira and add them to Workfront.
-		ArrayList<Task> epics = jiraClient.getEpics(project.getJiraProjectID());
-		for (Task task : epics) {
+		if (jira == null) {
+			return allWritten;
+		}
+		for (Task task : jira.epics) {
 			if (!project.hasJiraTask(task.getJiraIssueID()) // if the epic isn't already a task in the project 
 					&& !project.hasSpecialEpic(task.getName()) // and the name of the epic is not on the list of "speical" epics
 				) {
@@ -368,5 +665,157 @@ public class ProjectSynchronizer {
 				project.addDevTask(task);
 			}	
 		}
+		return allWritten;
+	}
+	
+	/**
+	 * Adds any new Workfront tasks to Jira. Returns the tasks that need to be
+	 * updated in Workfront with their new Jira issue ID and URL.
+	 */
+	private static List<Task> createNewIssues(Project project) {
+		List<Task> newTasks = new ArrayList<Task>();
+		
+		for (Task task : project.getWorkfrontDevTasks().values()) {
+			
+			// Skip any tasks that aren't marked to sync with Jira
+			if (!task.isSyncWithJira()) {
+				continue;
+			}
+			
+			if (task.getJiraIssueID() == null || task.getJiraIssueID().isEmpty()) {
+				try {
+					// This is a new task. Add it to Jira.
+					jiraClient.createIssue(project, task);
+					newTasks.add(task);
+				}
+				catch (JiraException e) {
+					logger.catching(e);
+				}
+			}
+		}
+		
+		return newTasks;
+	}
+	
+	/**
+	 * Reads everything we need from Jira for a project: the current state of
+	 * the synced issues, the project's epics and its new worklog entries. They
+	 * are either read with one batch of queries (Jira.CombinedReads) or with
+	 * separate queries at the same time. If any read fails, or they don't all
+	 * finish in time, the rest are cancelled.
+	 */
+	private static JiraSnapshot readJira(Project project, Date currentSyncTimestamp, List<Task> newTasks, boolean backfill) throws JiraException {
+		// Issues that haven't been updated since the project was last synced still
+		// match their tasks, so only read the ones updated since then. If the
+		// tasks were just reloaded from Workfront they all have to be compared.
+		Date changedSince = project.isJiraSyncNeeded() ? null : jiraWatermarks.get(project.getJiraProjectID());
+		
+		// The epics were normally read for the whole portfolio at the start of the
+		// cycle. A project that was only just added to Jira wasn't included, and a
+		// new issue with an epic name may have just created its epic, so those
+		// projects read their own.
+		boolean readEpics = !portfolioEpics.containsKey(project.getJiraProjectID());
+		for (Task task : newTasks) {
+			if (task.getJiraEpicName() != null && !task.getJiraEpicName().isEmpty()) {
+				readEpics = true;
+			}
+		}
+		
+		JiraSnapshot jira;
+		if (properties.isJiraCombinedReads()) {
+			jira = readJiraCombined(project, currentSyncTimestamp, changedSince, readEpics, backfill);
+		} else {
+			jira = readJiraInParallel(project, currentSyncTimestamp, changedSince, readEpics, backfill);
+		}
+		
+		// Tasks that were only just added to Jira are already up to date
+		for (Task task : newTasks) {
+			jira.issues.remove(task.getWorkfrontTaskID());
+		}
+		
+		return jira;
+	}
+	
+	/*
+	 * Reads the issues, and the epics and worklog if they weren't read for the whole
+	 * portfolio, with one batch of queries.
+	 */
+	private static JiraSnapshot readJiraCombined(Project project, Date currentSyncTimestamp, Date changedSince, boolean readEpics, boolean backfill) throws JiraException {
+		JiraSnapshot jira = new JiraSnapshot();
+		boolean readWorkLog = !backfill && !portfolioWorkLog.containsKey(project.getJiraProjectID());
+		
+		ProjectRead read = jiraClient.readProject(project, changedSince, readEpics, readWorkLog ? currentSyncTimestamp : null);
+		jira.issues = read.getIssues();
+		jira.epics = readEpics ? read.getEpics() : portfolioEpics.get(project.getJiraProjectID());
+		if (backfill) {
+			jira.worklog = new ArrayList<WorkLog>();
+		} else {
+			jira.worklog = readWorkLog ? read.getWorkLog() : portfolioWorkLog.get(project.getJiraProjectID());
+		}
+		
+		return jira;
+	}
+	
+	/*
+	 * Reads the issues, and the epics and worklog if they weren't read for the whole
+	 * portfolio, with separate queries run at the same time.
+	 */
+	private static JiraSnapshot readJiraInParallel(final Project project, final Date currentSyncTimestamp, final Date changedSince, boolean readEpics, boolean backfill) throws JiraException {
+		JiraSnapshot jira = new JiraSnapshot();
+		FanOut reads = new FanOut();
+		
+		Future<Map<String, Task>> issues = reads.fork(new Callable<Map<String, Task>>() {
+			public Map<String, Task> call() throws JiraException {
+				return jiraClient.getIssues(project, changedSince);
+			}
+		});
+		
+		// The epics and worklog were normally read for the whole portfolio at the
+		// start of the cycle. A project that was only just added to Jira wasn't
+		// included, so read its own.
+		Future<ArrayList<Task>> epics;
+		if (!readEpics) {
+			epics = CompletableFuture.completedFuture(portfolioEpics.get(project.getJiraProjectID()));
+		} else {
+			epics = reads.fork(new Callable<ArrayList<Task>>() {
+				public ArrayList<Task> call() throws JiraException {
+					return jiraClient.getEpics(project.getJiraProjectID());
+				}
+			});
+		}
+		
+		// A project whose worklog is being backfilled reads it separately
+		Future<ArrayList<WorkLog>> worklog;
+		if (backfill) {
+			worklog = CompletableFuture.completedFuture(new ArrayList<WorkLog>());
+		} else if (portfolioWorkLog.containsKey(project.getJiraProjectID())) {
+			worklog = CompletableFuture.completedFuture(portfolioWorkLog.get(project.getJiraProjectID()));
+		} else {
+			worklog = reads.fork(new Callable<ArrayList<WorkLog>>() {
+				public ArrayList<WorkLog> call() throws JiraException {
+					return jiraClient.getWorkLogEntries(project, project.getLastJiraSync(), currentSyncTimestamp);
+				}
+			});
+		}
+		
+		try {
+			reads.join(properties.getJiraReadTimeout());
+			jira.issues = issues.get();
+			jira.epics = epics.get();
+			jira.worklog = worklog.get();
+		} catch (JiraException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JiraException(e);
+		}
+		
+		return jira;
+	}
+	
+	// Everything read from Jira for one project
+	private static class JiraSnapshot {
+		Map<String, Task> issues; // Hashed by the Workfront ID
+		ArrayList<Task> epics;
+		ArrayList<WorkLog> worklog;
 	}
 }
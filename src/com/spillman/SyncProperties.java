@@ -16,29 +16,69 @@ public class SyncProperties extends Properties {
 	// Private constants
 	private static final String PROPERTIES_FILE_NAME = "sync.properties";
 	private static final String DEFAULT_TIME_TO_SLEEP 			= "10000";
+	private static final String DEFAULT_SYNC_THREADS			= "1";
+	private static final String DEFAULT_JIRA_READ_THREADS		= "8";
+	private static final String DEFAULT_JIRA_READ_TIMEOUT		= "300000";
+	private static final String DEFAULT_JIRA_BACKFILL_WINDOW	= "2592000000";
+	private static final String DEFAULT_JIRA_PROJECT_CACHE_TTL	= "3600000";
+	private static final String DEFAULT_JIRA_COMBINED_READS		= "false";
+	private static final String DEFAULT_KEEP_ALIVE_SECONDS		= "30";
+	private static final String DEFAULT_TLS_SESSION_TIMEOUT		= "1800";
+	private static final String DEFAULT_MAX_CONNECTIONS			= "5";
+	private static final String DEFAULT_PREFETCH_PAGES			= "true";
+	private static final String DEFAULT_BATCH_SIZE				= "0";
+	private static final String DEFAULT_ATOMIC_BATCHES			= "false";
+	private static final String DEFAULT_BULK_UPDATE_SIZE		= "100";
+	private static final String DEFAULT_MAX_IN_FLIGHT			= "5";
+	private static final String DEFAULT_CRM_LABEL_CACHE_TTL		= "3600000";
+	private static final String DEFAULT_SQL_POOL_SIZE			= "8";
+	private static final String DEFAULT_SQL_MAX_IDLE_TIME		= "300000";
+	private static final String DEFAULT_SQL_MAX_LIFETIME		= "1800000";
+	private static final String DEFAULT_SQL_VALIDATION_TIMEOUT	= "5";
 
 	private static final String PROP_CRM_JDBC_CONNECTION_STRING	= "CRM.JDBC_ConnectionString";
+	private static final String PROP_CRM_LABEL_CACHE_TTL		= "CRM.LabelCacheTTL";
 
 	private static final String PROP_DEFAULT_VERSION			= "DefaultVersion";
 
+	private static final String PROP_JIRA_BACKFILL_WINDOW		= "Jira.BackfillWindow";
 	private static final String PROP_JIRA_BROWSE_URL			= "Jira.BrowseUrl";
+	private static final String PROP_JIRA_COMBINED_READS		= "Jira.CombinedReads";
 	private static final String PROP_JIRA_CREATE_PROJECT_URL	= "Jira.CreateProjectUrl";
 	private static final String PROP_JIRA_CREATE_ISSUE_URL		= "Jira.CreateIssueUrl";
 	private static final String PROP_JIRA_EPIC_ISSUE_TYPE		= "Jira.EpicIssueType";
 	private static final String PROP_JIRA_EPIC_STORY_LINK_NAME	= "Jira.EpicStoryLinkName";
 	private static final String PROP_JIRA_LINK_ISSUE_URL		= "Jira.LinkIssueUrl";
+	private static final String PROP_JIRA_MAX_IN_FLIGHT			= "Jira.MaxInFlight";
 	private static final String PROP_JIRA_ISSUE_TYPES			= "Jira.IssueTypes";
 	private static final String PROP_JIRA_JDBC_CONNECTION_STRING= "Jira.JDBC_ConnectionString";
 	private static final String PROP_JIRA_PASSWORD				= "Jira.Password";
+	private static final String PROP_JIRA_PROJECT_CACHE_TTL		= "Jira.ProjectCacheTTL";
+	private static final String PROP_JIRA_READ_THREADS			= "Jira.ReadThreads";
+	private static final String PROP_JIRA_READ_TIMEOUT			= "Jira.ReadTimeout";
 	private static final String PROP_JIRA_TASK_TEMPLATE			= "Workfront.JiraTaskTemplate";
 	private static final String PROP_JIRA_URL					= "Jira.Url";
 	private static final String PROP_JIRA_USERNAME				= "Jira.Username";
 
+	private static final String PROP_SQL_POOL_SIZE				= "SQL.PoolSize";
+	private static final String PROP_SQL_MAX_IDLE_TIME			= "SQL.MaxIdleTime";
+	private static final String PROP_SQL_MAX_LIFETIME			= "SQL.MaxLifetime";
+	private static final String PROP_SQL_VALIDATION_TIMEOUT		= "SQL.ValidationTimeout";
+
+	private static final String PROP_SYNC_THREADS				= "SyncThreads";
 	private static final String PROP_TIME_TO_SLEEP 				= "TimeToSleep";
 	
 	private static final String PROP_NEW_PROJECT_REQUEST_PROJECT_ID		= "Workfront.NewProjectRequestProjectID";
 	private static final String PROP_WORKFRONT_APIKEY					= "Workfront.ApiKey";
+	private static final String PROP_WORKFRONT_ATOMIC_BATCHES			= "Workfront.AtomicBatches";
+	private static final String PROP_WORKFRONT_BATCH_SIZE				= "Workfront.BatchSize";
+	private static final String PROP_WORKFRONT_BULK_UPDATE_SIZE			= "Workfront.BulkUpdateSize";
 	private static final String PROP_WORKFRONT_DEV_PORTFOLIO			= "Workfront.DevPortfolio";
+	private static final String PROP_WORKFRONT_KEEP_ALIVE_SECONDS		= "Workfront.KeepAliveSeconds";
+	private static final String PROP_WORKFRONT_TLS_SESSION_TIMEOUT		= "Workfront.TlsSessionTimeoutSeconds";
+	private static final String PROP_WORKFRONT_MAX_CONNECTIONS			= "Workfront.MaxConnections";
+	private static final String PROP_WORKFRONT_MAX_IN_FLIGHT			= "Workfront.MaxInFlight";
+	private static final String PROP_WORKFRONT_PREFETCH_PAGES			= "Workfront.PrefetchPages";
 	private static final String PROP_WORKFRONT_PROGRAM_DEV_TEAM 		= "Workfront.ProgramDevTeamMap";
 	private static final String PROP_WORKFRONT_PROGRAM_PREFIXES 		= "Workfront.ProgramPrefixes";
 	private static final String PROP_WORKFRONT_URL						= "Workfront.Url";
@@ -60,6 +100,10 @@ public class SyncProperties extends Properties {
 		return Long.parseLong(this.getProperty(PROP_TIME_TO_SLEEP, DEFAULT_TIME_TO_SLEEP));
 	}
 	
+	public int getSyncThreads() {
+		return Integer.parseInt(this.getProperty(PROP_SYNC_THREADS, DEFAULT_SYNC_THREADS));
+	}
+	
 	public String getWorkfrontUsername() {
 		return this.getProperty(PROP_WORKFRONT_USERNAME);
 	}
@@ -72,6 +116,38 @@ public class SyncProperties extends Properties {
 		return this.getProperty(PROP_WORKFRONT_URL);
 	}
 
+	public int getWorkfrontMaxConnections() {
+		return Integer.parseInt(this.getProperty(PROP_WORKFRONT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS));
+	}
+
+	public int getWorkfrontMaxInFlight() {
+		return Integer.parseInt(this.getProperty(PROP_WORKFRONT_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT));
+	}
+
+	public int getWorkfrontKeepAliveSeconds() {
+		return Integer.parseInt(this.getProperty(PROP_WORKFRONT_KEEP_ALIVE_SECONDS, DEFAULT_KEEP_ALIVE_SECONDS));
+	}
+
+	public int getWorkfrontTlsSessionTimeoutSeconds() {
+		return Integer.parseInt(this.getProperty(PROP_WORKFRONT_TLS_SESSION_TIMEOUT, DEFAULT_TLS_SESSION_TIMEOUT));
+	}
+
+	public boolean getWorkfrontPrefetchPages() {
+		return Boolean.parseBoolean(this.getProperty(PROP_WORKFRONT_PREFETCH_PAGES, DEFAULT_PREFETCH_PAGES));
+	}
+
+	public int getWorkfrontBatchSize() {
+		return Integer.parseInt(this.getProperty(PROP_WORKFRONT_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+	}
+
+	public int getWorkfrontBulkUpdateSize() {
+		return Math.max(1, Integer.parseInt(this.getProperty(PROP_WORKFRONT_BULK_UPDATE_SIZE, DEFAULT_BULK_UPDATE_SIZE)));
+	}
+
+	public boolean getWorkfrontAtomicBatches() {
+		return Boolean.parseBoolean(this.getProperty(PROP_WORKFRONT_ATOMIC_BATCHES, DEFAULT_ATOMIC_BATCHES));
+	}
+
 	public String getWorkfrontDevPortfolioName() {
 		return this.getProperty(PROP_WORKFRONT_DEV_PORTFOLIO);
 	}
@@ -92,6 +168,38 @@ public class SyncProperties extends Properties {
 		return this.getProperty(PROP_JIRA_EPIC_ISSUE_TYPE);
 	}
 	
+	public int getJiraMaxInFlight() {
+		return Integer.parseInt(this.getProperty(PROP_JIRA_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT));
+	}
+
+	public int getJiraReadThreads() {
+		return Integer.parseInt(this.getProperty(PROP_JIRA_READ_THREADS, DEFAULT_JIRA_READ_THREADS));
+	}
+
+	public long getJiraReadTimeout() {
+		return Long.parseLong(this.getProperty(PROP_JIRA_READ_TIMEOUT, DEFAULT_JIRA_READ_TIMEOUT));
+	}
+
+	/**
+	 * Milliseconds of worklog history read and posted at a time when a project's
+	 * worklog is backfilled. Defaults to 30 days.
+	 */
+	public long getJiraBackfillWindow() {
+		return Math.max(1, Long.parseLong(this.getProperty(PROP_JIRA_BACKFILL_WINDOW, DEFAULT_JIRA_BACKFILL_WINDOW)));
+	}
+
+	/**
+	 * If true, each project is read from Jira with one batch of queries instead
+	 * of separate queries run at the same time.
+	 */
+	public boolean isJiraCombinedReads() {
+		return Boolean.parseBoolean(this.getProperty(PROP_JIRA_COMBINED_READS, DEFAULT_JIRA_COMBINED_READS));
+	}
+
+	public long getJiraProjectCacheTTL() {
+		return Long.parseLong(this.getProperty(PROP_JIRA_PROJECT_CACHE_TTL, DEFAULT_JIRA_PROJECT_CACHE_TTL));
+	}
+
 	public String getJiraUsername() {
 		return this.getProperty(PROP_JIRA_USERNAME);
 	}
@@ -128,6 +236,26 @@ public class SyncProperties extends Properties {
 	public String getCRMJDBCConnectionString() {
 		return this.getProperty(PROP_CRM_JDBC_CONNECTION_STRING); 
 	}
+	
+	public long getCRMLabelCacheTTL() {
+		return Long.parseLong(this.getProperty(PROP_CRM_LABEL_CACHE_TTL, DEFAULT_CRM_LABEL_CACHE_TTL));
+	}
+	
+	public int getSQLPoolSize() {
+		return Integer.parseInt(this.getProperty(PROP_SQL_POOL_SIZE, DEFAULT_SQL_POOL_SIZE));
+	}
+	
+	public long getSQLMaxIdleTime() {
+		return Long.parseLong(this.getProperty(PROP_SQL_MAX_IDLE_TIME, DEFAULT_SQL_MAX_IDLE_TIME));
+	}
+	
+	public long getSQLMaxLifetime() {
+		return Long.parseLong(this.getProperty(PROP_SQL_MAX_LIFETIME, DEFAULT_SQL_MAX_LIFETIME));
+	}
+	
+	public int getSQLValidationTimeout() {
+		return Integer.parseInt(this.getProperty(PROP_SQL_VALIDATION_TIMEOUT, DEFAULT_SQL_VALIDATION_TIMEOUT));
+	}
 
 	public HashMap<String,String> getProgramPrefixMap() {
 		return parseMappings(PROP_WORKFRONT_PROGRAM_PREFIXES);
@@ -32,6 +32,7 @@ public class Project extends OpportunityHolder {
 	private List<String> versions;
 	private boolean syncWithJira;
 	private Date lastJiraSync;
+	private boolean jiraSyncNeeded = true; // set when the tasks are (re)loaded from Workfront
 	private HashMap<String,Boolean> specialEpics;
 	private HashMap<String,Task> wfDevTasks; // Hashed by the Workfront ID
 	private HashMap<String,Task> jiraDevTasks; // Hash by the Jira ID
@@ -76,7 +77,7 @@ public class Project extends OpportunityHolder {
 		
 		if (!project.isNull(Workfront.LAST_JIRA_SYNC)) {
 			try {
-				setLastJiraSync(Workfront.dateFormatterTZ.parse(project.getString(Workfront.LAST_JIRA_SYNC)));
+				setLastJiraSync(Workfront.dateFormatterTZ.get().parse(project.getString(Workfront.LAST_JIRA_SYNC)));
 			} catch (ParseException e) {
 				logger.catching(e);
 			}
@@ -249,6 +250,18 @@ public class Project extends OpportunityHolder {
 		this.syncWithJira = syncWithJira;
 	}
 
+	/**
+	 * Returns true if the project has to be compared with Jira this cycle even
+	 * if nothing changed in Jira, because its tasks were reloaded from Workfront.
+	 */
+	public boolean isJiraSyncNeeded() {
+		return jiraSyncNeeded;
+	}
+
+	public void setJiraSyncNeeded(boolean jiraSyncNeeded) {
+		this.jiraSyncNeeded = jiraSyncNeeded;
+	}
+
 	public Date getLastJiraSync() {
 		return lastJiraSync;
 	}
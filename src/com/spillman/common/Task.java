@@ -53,7 +53,7 @@ public class Task {
 		percentComplete = task.getDouble(Workfront.PERCENT_COMPLETE);
 		
 		try {
-			workfrontLastUpdateDate = Workfront.dateFormatterTZ.parse(task.getString(Workfront.LAST_UPDATE_DATE));
+			workfrontLastUpdateDate = Workfront.dateFormatterTZ.get().parse(task.getString(Workfront.LAST_UPDATE_DATE));
 		} catch (ParseException e) {
 			logger.catching(e);
 		}
@@ -13,6 +13,17 @@ public class CRM {
 	public final static String OPPORTUNITY_FLAG 		= "Flag";
 	public final static String OPPORTUNITY_PROBABILITY	= "CloseProbability";
 	public final static String OPPORTUNITY_STATE		= "StateCode";
+	public final static String OPPORTUNITY_TYPE			= "St_OpportunityType";
+	
+	// FilteredStringMap attributes that hold the labels for the opportunity codes
+	public final static String ATTRIBUTE_PHASE			= "st_salesphase";
+	public final static String ATTRIBUTE_FLAG			= "st_flagtype";
+	public final static String ATTRIBUTE_POSITION		= "st_position";
+	public final static String ATTRIBUTE_TYPE			= "st_opportunitytype";
+	
+	// Opportunity types that aren't synced to Workfront
+	public final static String TYPE_CITADEX				= "Citadex";
+	public final static String TYPE_ADD_ON				= "Add-on";
 	
 	public final static int STATE_WIN	= 1;
 	public final static int STATE_LOSE	= 2;
@@ -1,22 +1,57 @@
 package com.spillman.crm;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.spillman.SyncProperties;
 import com.spillman.common.Account;
 import com.spillman.common.Opportunity;
+import com.spillman.common.OpportunityHolder;
+import com.spillman.sql.ConnectionPool;
 
 public class CRMClient {
 	private static final Logger logger = LogManager.getLogger();
 	
 	private CRMSQLClient sqlClient;
 	
-	public CRMClient(String jdbcConnectionString) throws CRMException {
-		logger.entry(jdbcConnectionString);
-		sqlClient = new CRMSQLClient(jdbcConnectionString);
+	// Opportunities read from CRM, hashed by upper case GUID. Entries are kept
+	// from one cycle to the next and replaced when CRM reports the opportunity
+	// was modified, and dropped once no active holder references them. An
+	// opportunity that doesn't exist in CRM is cached as null.
+	// Each entry is a future so that threads asking for the same opportunity
+	// wait for a single query instead of each running their own.
+	private ConcurrentHashMap<String, CompletableFuture<Opportunity>> opportunityCache = new ConcurrentHashMap<String, CompletableFuture<Opportunity>>();
+	private AtomicLong cacheHits = new AtomicLong();
+	private AtomicLong cacheMisses = new AtomicLong();
+	
+	// GUIDs of the opportunities modified since the last cycle
+	private Set<String> modifiedOpportunities = new HashSet<String>();
+	
+	// The opportunity IDs, lead opportunity and combined probability of each
+	// holder when it was last synced, hashed by holder key. A holder is left
+	// out while it has changes that haven't been synced.
+	private ConcurrentHashMap<String, String> syncedHolders = new ConcurrentHashMap<String, String>();
+	
+	public CRMClient(SyncProperties props) throws CRMException {
+		logger.entry(props);
+		ConnectionPool pool = new ConnectionPool(props.getCRMJDBCConnectionString(), props.getSQLPoolSize(),
+				props.getSQLMaxIdleTime(), props.getSQLMaxLifetime(), props.getSQLValidationTimeout());
+		sqlClient = new CRMSQLClient(pool, props.getCRMLabelCacheTTL());
 		logger.exit();
 	}
 
@@ -44,8 +79,239 @@ public class CRMClient {
 		return logger.exit(opportunity);
 	}
 	
+	/**
+	 * Starts a new sync cycle. Cached opportunities that were modified in CRM
+	 * since the last cycle are replaced with their current values.
+	 */
+	public void startCycle(Date modifiedSince) throws CRMException {
+		logger.entry(modifiedSince);
+		logger.debug("Opportunity cache: {} hits, {} misses", cacheHits.get(), cacheMisses.get());
+		cacheHits.set(0);
+		cacheMisses.set(0);
+		
+		modifiedOpportunities = new HashSet<String>();
+		if (opportunityCache.isEmpty()) {
+			// Nothing cached yet, so everything will be read fresh anyway
+			logger.exit();
+			return;
+		}
+		
+		for (Opportunity o : getOpportunitiesModifiedSince(modifiedSince)) {
+			String key = o.getCrmOpportunityID().toUpperCase();
+			modifiedOpportunities.add(key);
+			if (opportunityCache.containsKey(key)) {
+				opportunityCache.put(key, CompletableFuture.completedFuture(o));
+			}
+		}
+		logger.debug("{} opportunities modified since {}", modifiedOpportunities.size(), modifiedSince);
+		logger.exit();
+	}
+	
+	public List<Opportunity> getOpportunitiesModifiedSince(Date modifiedSince) throws CRMException {
+		logger.entry(modifiedSince);
+		List<Opportunity> opportunities = sqlClient.getModifiedOpportunities(new java.sql.Timestamp(modifiedSince.getTime()));
+		return logger.exit(opportunities);
+	}
+	
+	/**
+	 * Returns the holders whose opportunities need to be synced: holders that
+	 * haven't been synced before, holders whose opportunity IDs, lead opportunity
+	 * or combined probability changed in Workfront, and holders that reference
+	 * an opportunity modified in CRM since the last cycle. The changed holders
+	 * stay changed until markSynced() is called for them, so a holder whose
+	 * sync fails is returned again next cycle. Cached opportunities that none
+	 * of the holders reference are dropped.
+	 */
+	public <T extends OpportunityHolder> List<T> getChangedHolders(Collection<T> holders) {
+		logger.entry();
+		
+		// Index the holders by the opportunities they reference
+		Map<String, Set<String>> holdersByOpportunity = new HashMap<String, Set<String>>();
+		Set<String> current = new HashSet<String>();
+		for (T holder : holders) {
+			String key = holderKey(holder);
+			current.add(key);
+			if (holder.getAllOpportunityIDs() == null) {
+				continue;
+			}
+			for (String id : holder.getAllOpportunityIDs()) {
+				Set<String> keys = holdersByOpportunity.get(id.toUpperCase());
+				if (keys == null) {
+					keys = new HashSet<String>();
+					holdersByOpportunity.put(id.toUpperCase(), keys);
+				}
+				keys.add(key);
+			}
+		}
+		
+		Set<String> affected = new HashSet<String>();
+		for (String id : modifiedOpportunities) {
+			if (holdersByOpportunity.containsKey(id)) {
+				affected.addAll(holdersByOpportunity.get(id));
+			}
+		}
+		
+		List<T> changed = new ArrayList<T>();
+		for (T holder : holders) {
+			String key = holderKey(holder);
+			if (affected.contains(key) || !signature(holder).equals(syncedHolders.get(key))) {
+				changed.add(holder);
+				syncedHolders.remove(key);
+			}
+		}
+		
+		// Forget holders and opportunities that are no longer active
+		syncedHolders.keySet().retainAll(current);
+		opportunityCache.keySet().retainAll(holdersByOpportunity.keySet());
+		
+		logger.debug("{} of {} holders have opportunity changes", changed.size(), holders.size());
+		return logger.exit(changed);
+	}
+	
+	/**
+	 * Records that a holder's opportunities have been synced to Workfront.
+	 */
+	public void markSynced(OpportunityHolder holder) {
+		syncedHolders.put(holderKey(holder), signature(holder));
+	}
+	
+	private static String holderKey(OpportunityHolder holder) {
+		return holder.getWorkfrontObjectCode() + ":" + holder.getWorkfrontID();
+	}
+	
+	private static String signature(OpportunityHolder holder) {
+		StringBuilder sb = new StringBuilder();
+		if (holder.getAllOpportunityIDs() != null) {
+			for (String id : holder.getAllOpportunityIDs()) {
+				sb.append(id.toUpperCase()).append(',');
+			}
+		}
+		sb.append('|');
+		if (holder.getOpportunity() != null) {
+			sb.append(holder.getOpportunity().getCrmOpportunityID());
+		}
+		sb.append('|').append(holder.getCombinedProbability());
+		return sb.toString();
+	}
+	
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+	
+	/**
+	 * Reads every opportunity referenced by the given projects and requests
+	 * from CRM in as few queries as possible, so that syncing each of them
+	 * afterwards doesn't have to go back to CRM.
+	 */
+	public void preloadOpportunities(Collection<? extends OpportunityHolder> holders) throws CRMException {
+		logger.entry();
+		LinkedHashSet<String> ids = new LinkedHashSet<String>();
+		for (OpportunityHolder holder : holders) {
+			if (holder.getAllOpportunityIDs() != null) {
+				ids.addAll(holder.getAllOpportunityIDs());
+			}
+		}
+		
+		if (!ids.isEmpty()) {
+			List<Opportunity> opps = getOpportunities(new ArrayList<String>(ids));
+			logger.debug("Preloaded {} of {} referenced opportunities", opps.size(), ids.size());
+		}
+		logger.exit();
+	}
+	
+	/**
+	 * Returns the opportunities with the given IDs, reading any that haven't
+	 * already been read this cycle from CRM. IDs that don't exist in CRM are
+	 * left out of the list.
+	 */
+	public List<Opportunity> getOpportunities(List<String> oppIDs) throws CRMException {
+		logger.entry(oppIDs);
+		
+		// Claim the IDs no other thread has asked for yet. This thread is
+		// responsible for loading them.
+		Map<String, CompletableFuture<Opportunity>> claimed = new HashMap<String, CompletableFuture<Opportunity>>();
+		Map<String, CompletableFuture<Opportunity>> futures = new LinkedHashMap<String, CompletableFuture<Opportunity>>();
+		for (String id : oppIDs) {
+			String key = id.toUpperCase();
+			if (futures.containsKey(key)) {
+				continue;
+			}
+			CompletableFuture<Opportunity> future = opportunityCache.get(key);
+			if (future == null) {
+				CompletableFuture<Opportunity> created = new CompletableFuture<Opportunity>();
+				future = opportunityCache.putIfAbsent(key, created);
+				if (future == null) {
+					future = created;
+					claimed.put(key, created);
+				}
+			}
+			if (claimed.containsKey(key)) {
+				cacheMisses.incrementAndGet();
+			}
+			else {
+				cacheHits.incrementAndGet();
+			}
+			futures.put(key, future);
+		}
+		
+		if (!claimed.isEmpty()) {
+			loadOpportunities(claimed);
+		}
+		
+		List<Opportunity> opps = new ArrayList<Opportunity>();
+		for (CompletableFuture<Opportunity> future : futures.values()) {
+			Opportunity o = waitFor(future);
+			if (o != null) {
+				opps.add(o);
+			}
+		}
+		return logger.exit(opps);
+	}
+	
+	private void loadOpportunities(Map<String, CompletableFuture<Opportunity>> claimed) throws CRMException {
+		try {
+			for (Opportunity o : sqlClient.getOpportunities(new ArrayList<String>(claimed.keySet()))) {
+				CompletableFuture<Opportunity> future = claimed.get(o.getCrmOpportunityID().toUpperCase());
+				if (future != null) {
+					future.complete(o);
+				}
+			}
+			// Anything not returned doesn't exist in CRM
+			for (CompletableFuture<Opportunity> future : claimed.values()) {
+				future.complete(null);
+			}
+		} catch (CRMException | RuntimeException e) {
+			// Don't cache the failure. Threads already waiting get the error,
+			// and the next caller tries again.
+			for (Map.Entry<String, CompletableFuture<Opportunity>> entry : claimed.entrySet()) {
+				if (entry.getValue().completeExceptionally(e)) {
+					opportunityCache.remove(entry.getKey(), entry.getValue());
+				}
+			}
+			throw e;
+		}
+	}
+	
+	private Opportunity waitFor(CompletableFuture<Opportunity> future) throws CRMException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CRMException) {
+				throw (CRMException) e.getCause();
+			}
+			throw new CRMException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CRMException(e);
+		}
+	}
+	
 	public Opportunity getLeadingOpportunity(List<String> oppIDs) throws CRMException {
-		List<Opportunity> opps = sqlClient.getOpportunities(oppIDs);
+		List<Opportunity> opps = getOpportunities(oppIDs);
 
 		Opportunity leadopp = null;
 		for (Opportunity o : opps) {
@@ -61,7 +327,7 @@ public class CRMClient {
 	}
 	
 	public Integer getCombinedProbability(List<String> oppIDs) throws CRMException {
-		List<Opportunity> opps = sqlClient.getOpportunities(oppIDs);
+		List<Opportunity> opps = getOpportunities(oppIDs);
 		
 		/*
 		 * The formula for the combined probability - the probability that at least one
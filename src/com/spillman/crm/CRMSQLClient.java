@@ -1,14 +1,15 @@
 package com.spillman.crm;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.logging.log4j.LogManager;
@@ -16,6 +17,9 @@ import org.apache.logging.log4j.Logger;
 
 import com.spillman.common.Account;
 import com.spillman.common.Opportunity;
+import com.spillman.sql.ConnectionPool;
+import com.spillman.sql.InListStatement;
+import com.spillman.sql.PooledConnection;
 
 
 public class CRMSQLClient {
@@ -27,190 +31,266 @@ public class CRMSQLClient {
 			+ "WHERE AC.StatusCode = 1 AND AC.CustomerTypeCode  = 3 AND AC.St_CustomerType in (1,2,4,5,100000000) AND AC.st_DateLeftSpillman IS NULL "
 			+ "    AND AC.ModifiedOn >= ?";
 	
+	// The phase, flag, position and type are codes. Their labels come from
+	// FilteredStringMap, which is cached rather than joined on every query.
 	final private static String OPPORUNITY_SELECT_STATEMENT =
-			"SELECT DISTINCT OP.Name AS OpportunityName, OP.CloseProbability, PHS.Value AS Phase, FLG.Value AS Flag, "
-			+ "POS.Value AS Position, CAST(OP.OpportunityId AS varchar(MAX)) AS OpportunityGUID, OP.StateCode "
-			+ "FROM     Opportunity AS OP LEFT OUTER JOIN "
-                  + "FilteredStringMap AS SRC ON SRC.AttributeName = 'st_source' AND SRC.FilteredViewName = 'filteredopportunity' AND SRC.AttributeValue = OP.St_Source LEFT OUTER JOIN "
-                  + "FilteredStringMap AS PHS ON PHS.AttributeName = 'st_salesphase' AND PHS.FilteredViewName = 'filteredopportunity' AND PHS.AttributeValue = OP.St_SalesPhase LEFT OUTER JOIN "
-                  + "FilteredStringMap AS FLG ON FLG.AttributeName = 'st_flagtype' AND FLG.FilteredViewName = 'filteredopportunity' AND FLG.AttributeValue = OP.St_FlagType LEFT OUTER JOIN "
-                  + "FilteredStringMap AS POS ON POS.AttributeName = 'st_position' AND POS.FilteredViewName = 'filteredopportunity' AND POS.AttributeValue = OP.St_Position LEFT OUTER JOIN "
-                  + "FilteredStringMap AS TYP ON TYP.AttributeName = 'st_opportunitytype' AND TYP.FilteredViewName = 'filteredopportunity' AND TYP.AttributeValue = OP.St_OpportunityType LEFT OUTER JOIN "
-                  + "FilteredStringMap AS REL ON REL.AttributeName = 'st_relationshiptype' AND REL.FilteredViewName = 'filteredopportunity' AND REL.AttributeValue = OP.St_RelationshipType LEFT OUTER JOIN "
-                  + "FilteredStringMap AS OPP ON OPP.AttributeName = 'st_opportunitytype' AND OPP.FilteredViewName = 'filteredopportunity' AND OPP.AttributeValue = OP.St_OpportunityType ";
+			"SELECT OP.Name AS OpportunityName, OP.CloseProbability, OP.St_SalesPhase AS Phase, OP.St_FlagType AS Flag, "
+			+ "OP.St_Position AS Position, OP.St_OpportunityType, CAST(OP.OpportunityId AS varchar(MAX)) AS OpportunityGUID, OP.StateCode "
+			+ "FROM     Opportunity AS OP ";
 
+	// There's a row for each installed language, so only the organization's
+	// base language is read
+	final private static String LABELS_SQL =
+			"SELECT AttributeName, AttributeValue, Value "
+			+ "FROM FilteredStringMap "
+			+ "WHERE FilteredViewName = 'filteredopportunity' AND AttributeName IN ('" + CRM.ATTRIBUTE_PHASE + "', '" + CRM.ATTRIBUTE_FLAG + "', '"
+			+ CRM.ATTRIBUTE_POSITION + "', '" + CRM.ATTRIBUTE_TYPE + "') "
+			+ "AND LangId = (SELECT TOP 1 LanguageCode FROM Organization)";
+
+	// Citadex and Add-on opportunities are filtered out after the labels are decoded
 	final private static String OPEN_OPPORTUNITIES_SQL = OPPORUNITY_SELECT_STATEMENT
-            + "WHERE  (OP.AccountIdName NOT LIKE '%Spillman%') AND (OP.StateCode = 0) AND (TYP.Value <> 'Citadex') AND (TYP.Value <> 'Add-on') "
+            + "WHERE  (OP.AccountIdName NOT LIKE '%Spillman%') AND (OP.StateCode = 0) "
             + "    AND OP.CreatedOn >= ?";
 
 	final private static String CLOSED_OPPORTUNITIES_SQL = OPPORUNITY_SELECT_STATEMENT
-            + "WHERE  (OP.AccountIdName NOT LIKE '%Spillman%') AND (OP.StateCode != 0) AND (TYP.Value <> 'Citadex') AND (TYP.Value <> 'Add-on') "
+            + "WHERE  (OP.AccountIdName NOT LIKE '%Spillman%') AND (OP.StateCode != 0) "
             + "    AND OP.ModifiedOn >= ?";
 
+	final private static String MODIFIED_OPPORTUNITIES_SQL = OPPORUNITY_SELECT_STATEMENT
+            + "WHERE  OP.ModifiedOn >= ?";
+
 	final private static String OPPORTUNITY_SQL = OPPORUNITY_SELECT_STATEMENT 
             + "WHERE  OP.OpportunityId = ?";
 
 	final private static String OPPORTUNITIES_SQL = OPPORUNITY_SELECT_STATEMENT 
-            + "WHERE  OP.OpportunityId IN (?,?,?,?,?,?,?,?,?,?)"; // number of question marks must match MAX_OPPORTUNITIES
+            + "WHERE  OP.OpportunityId IN " + InListStatement.VALUES;
+
+	// Each query runs on a connection from the pool, which keeps its own
+	// prepared statements, so queries from different threads run at the same time.
+	private ConnectionPool pool;
 	
-	final private static int MAX_OPPORTUNITIES = 10;
-
-	private Connection con = null;
-	private PreparedStatement accountNamesStatement = null;
-	private PreparedStatement openOpportunitiesStatement = null;
-	private PreparedStatement closedOpportunitiesStatement = null;
-	private PreparedStatement opportunityStatement = null;
-	private PreparedStatement opportunitiesStatement = null;
-	private Calendar gmtcal = null;
-
-	public CRMSQLClient(String connectionString) throws CRMException {
-		logger.entry(connectionString);
+	// Attribute name -> code -> label, replaced as a whole when it expires
+	private volatile Map<String, Map<Integer, String>> labels = null;
+	private volatile long labelsLoaded = 0;
+	private long labelCacheTTL;
+
+	public CRMSQLClient(ConnectionPool pool, long labelCacheTTL) throws CRMException {
+		logger.entry(pool, labelCacheTTL);
+		this.pool = pool;
+		this.labelCacheTTL = labelCacheTTL;
 		
-		// Establish the connection.
+		// Make sure we can connect before the sync starts.
 		try {
 			Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
-	    	con = DriverManager.getConnection(connectionString);
-	    	logger.debug("Jira database JDBC conenction string: {}", connectionString);
+			pool.execute(new ConnectionPool.Work<Void>() {
+				public Void run(PooledConnection con) throws SQLException {
+					return null;
+				}
+			});
 		} catch (ClassNotFoundException e) {
 			throw new CRMException(e);
 		} catch (SQLException e) {
 			throw new CRMException(e);
 		}
 		
-		gmtcal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
-		
 		logger.exit();
 	}
 	
-	public List<Account> getAccountNames(Timestamp createdSince) throws CRMException {
+	public List<Account> getAccountNames(final Timestamp createdSince) throws CRMException {
 		try {
-			if (accountNamesStatement == null) {
-				accountNamesStatement = con.prepareStatement(ACCOUNT_NAMES_SQL);
-			}
-			
-			List<Account> codes = new ArrayList<Account>();
-			
-			accountNamesStatement.setTimestamp(1, createdSince, gmtcal);
-			ResultSet rs = accountNamesStatement.executeQuery();
-			while (rs.next()) {
-				codes.add(new Account(rs.getString(CRM.UNIQUE_ACCOUNT_NAME), rs.getString(CRM.ACCOUNT_GUID), rs.getString(CRM.CUSTOMER_CODE)));
-			}
-			rs.close();
-			
-			return codes;
+			return pool.execute(new ConnectionPool.Work<List<Account>>() {
+				public List<Account> run(PooledConnection con) throws SQLException {
+					List<Account> codes = new ArrayList<Account>();
+					
+					PreparedStatement ps = con.prepareStatement(ACCOUNT_NAMES_SQL);
+					ps.setTimestamp(1, createdSince, gmtCalendar());
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()) {
+						codes.add(new Account(rs.getString(CRM.UNIQUE_ACCOUNT_NAME), rs.getString(CRM.ACCOUNT_GUID), rs.getString(CRM.CUSTOMER_CODE)));
+					}
+					rs.close();
+					
+					return codes;
+				}
+			});
 		} catch (SQLException e) {
 			throw new CRMException(e);
 		}
 	}
 
 	public List<Opportunity> getOpenOpportunities(Timestamp createdSince) throws CRMException {
-		try {
-			if (openOpportunitiesStatement == null) {
-				openOpportunitiesStatement = con.prepareStatement(OPEN_OPPORTUNITIES_SQL);
-			}
-			
-			List<Opportunity> codes = new ArrayList<Opportunity>();
+		return getSyncedOpportunities(OPEN_OPPORTUNITIES_SQL, createdSince);
+	}
 
-			openOpportunitiesStatement.setTimestamp(1, createdSince, gmtcal);
-			ResultSet rs = openOpportunitiesStatement.executeQuery();
-			while (rs.next()) {
-				codes.add(createOpportunityFromResultSet(rs));
-			}
-			rs.close();
-			
-			return codes;
+	public List<Opportunity> getClosedOpportunities(Timestamp modifiedSince) throws CRMException {
+		return getSyncedOpportunities(CLOSED_OPPORTUNITIES_SQL, modifiedSince);
+	}
+
+	/*
+	 * Runs one of the opportunity queries that takes a time and returns only
+	 * the opportunities of the types we sync.
+	 */
+	private List<Opportunity> getSyncedOpportunities(final String sql, final Timestamp since) throws CRMException {
+		try {
+			return pool.execute(new ConnectionPool.Work<List<Opportunity>>() {
+				public List<Opportunity> run(PooledConnection con) throws SQLException {
+					List<Opportunity> codes = new ArrayList<Opportunity>();
+					
+					PreparedStatement ps = con.prepareStatement(sql);
+					ps.setTimestamp(1, since, gmtCalendar());
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()) {
+						if (isSyncedType(con, rs)) {
+							codes.add(createOpportunityFromResultSet(con, rs));
+						}
+					}
+					rs.close();
+					
+					return codes;
+				}
+			});
 		} catch (SQLException e) {
 			throw new CRMException(e);
 		}
 	}
 
-	public List<Opportunity> getClosedOpportunities(Timestamp modifiedSince) throws CRMException {
+	public List<Opportunity> getModifiedOpportunities(final Timestamp modifiedSince) throws CRMException {
 		try {
-			if (closedOpportunitiesStatement == null) {
-				closedOpportunitiesStatement = con.prepareStatement(CLOSED_OPPORTUNITIES_SQL);
-			}
-			
-			List<Opportunity> codes = new ArrayList<Opportunity>();
-
-			closedOpportunitiesStatement.setTimestamp(1, modifiedSince, gmtcal);
-			ResultSet rs = closedOpportunitiesStatement.executeQuery();
-			while (rs.next()) {
-				codes.add(createOpportunityFromResultSet(rs));
-			}
-			rs.close();
-			
-			return codes;
+			return pool.execute(new ConnectionPool.Work<List<Opportunity>>() {
+				public List<Opportunity> run(PooledConnection con) throws SQLException {
+					List<Opportunity> opps = new ArrayList<Opportunity>();
+					
+					PreparedStatement ps = con.prepareStatement(MODIFIED_OPPORTUNITIES_SQL);
+					ps.setTimestamp(1, modifiedSince, gmtCalendar());
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()) {
+						opps.add(createOpportunityFromResultSet(con, rs));
+					}
+					rs.close();
+					
+					return opps;
+				}
+			});
 		} catch (SQLException e) {
 			throw new CRMException(e);
 		}
 	}
 
-	public Opportunity getOpportunity(String id) throws CRMException {
+	public Opportunity getOpportunity(final String id) throws CRMException {
 		try {
-			if (opportunityStatement == null) {
-				opportunityStatement = con.prepareStatement(OPPORTUNITY_SQL);
-			}
-			
-			opportunityStatement.setString(1, id);
-			ResultSet rs = opportunityStatement.executeQuery();
-			Opportunity opp = null;
-			if (rs.next()) {
-				opp = createOpportunityFromResultSet(rs);
-			}
-			else {
-				logger.trace("The query didn't return any results.");
-			}
-			rs.close();
-			return opp;
+			return pool.execute(new ConnectionPool.Work<Opportunity>() {
+				public Opportunity run(PooledConnection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(OPPORTUNITY_SQL);
+					ps.setString(1, id);
+					ResultSet rs = ps.executeQuery();
+					Opportunity opp = null;
+					if (rs.next()) {
+						opp = createOpportunityFromResultSet(con, rs);
+					}
+					else {
+						logger.trace("The query didn't return any results.");
+					}
+					rs.close();
+					return opp;
+				}
+			});
 		} catch (SQLException e) {
 			throw new CRMException(e);
 		}
 	}
 	
-	public List<Opportunity> getOpportunities(List<String> ids) throws CRMException {
+	public List<Opportunity> getOpportunities(final List<String> ids) throws CRMException {
 		try {
-			if (opportunitiesStatement == null) {
-				opportunitiesStatement = con.prepareStatement(OPPORTUNITIES_SQL);
-			}
-			
-			int size = ids.size();
-			if (size > MAX_OPPORTUNITIES) {
-				size = MAX_OPPORTUNITIES;
-				logger.error("The number of opportunites exceeds the maximum allowed: MAX_OPPORTUNITIES={}", MAX_OPPORTUNITIES);
-			}
-			
-			int i = 0;
-			while (i < size) {
-				opportunitiesStatement.setString(i+1, ids.get(i));
-				i++;
-			}
-			while (i < MAX_OPPORTUNITIES) {
-				opportunitiesStatement.setNull(i+1, java.sql.Types.VARCHAR);
-				i++;
-			}
-			
-			ResultSet rs = opportunitiesStatement.executeQuery();
-			List<Opportunity> opps = new ArrayList<Opportunity>();
-			while (rs.next()) {
-				opps.add(createOpportunityFromResultSet(rs));
-			}
-			rs.close();
-			return opps;
+			return pool.execute(new ConnectionPool.Work<List<Opportunity>>() {
+				public List<Opportunity> run(PooledConnection con) throws SQLException {
+					InListStatement statement = con.prepareInListStatement(OPPORTUNITIES_SQL);
+					List<Opportunity> opps = new ArrayList<Opportunity>();
+					for (List<String> chunk : InListStatement.chunks(ids)) {
+						ResultSet rs = statement.prepare(chunk).executeQuery();
+						while (rs.next()) {
+							opps.add(createOpportunityFromResultSet(con, rs));
+						}
+						rs.close();
+					}
+					return opps;
+				}
+			});
 		} catch (SQLException e) {
 			throw new CRMException(e);
 		}
 	}
 	
-	private Opportunity createOpportunityFromResultSet(ResultSet rs) throws SQLException {
+	public void close() {
+		pool.close();
+	}
+	
+	private Opportunity createOpportunityFromResultSet(PooledConnection con, ResultSet rs) throws SQLException {
 		Opportunity o = new Opportunity();
 		o.setCrmOpportunityID(rs.getString(CRM.OPPORTUNITY_GUID));
 		o.setName(rs.getString(CRM.OPPORTUNITY_NAME));
-		o.setPhase(rs.getString(CRM.OPPORTUNITY_PHASE));
+		o.setPhase(getLabel(con, rs, CRM.OPPORTUNITY_PHASE, CRM.ATTRIBUTE_PHASE));
 		o.setProbability(rs.getInt(CRM.OPPORTUNITY_PROBABILITY));
-		o.setFlag(rs.getString(CRM.OPPORTUNITY_FLAG));
-		o.setPosition(rs.getString(CRM.OPPORTUNITY_POSITION));
+		o.setFlag(getLabel(con, rs, CRM.OPPORTUNITY_FLAG, CRM.ATTRIBUTE_FLAG));
+		o.setPosition(getLabel(con, rs, CRM.OPPORTUNITY_POSITION, CRM.ATTRIBUTE_POSITION));
 		o.setState(rs.getInt(CRM.OPPORTUNITY_STATE));
 		return o;
 	}
+	
+	/*
+	 * Citadex and Add-on opportunities aren't synced. An opportunity without
+	 * a type isn't either, the same as when the type was compared in SQL.
+	 */
+	private boolean isSyncedType(PooledConnection con, ResultSet rs) throws SQLException {
+		String type = getLabel(con, rs, CRM.OPPORTUNITY_TYPE, CRM.ATTRIBUTE_TYPE);
+		return type != null && !type.equals(CRM.TYPE_CITADEX) && !type.equals(CRM.TYPE_ADD_ON);
+	}
+	
+	private String getLabel(PooledConnection con, ResultSet rs, String column, String attribute) throws SQLException {
+		int code = rs.getInt(column);
+		if (rs.wasNull()) {
+			return null;
+		}
+		Map<Integer, String> values = getLabels(con).get(attribute);
+		return values == null ? null : values.get(code);
+	}
+	
+	// Calendar isn't thread safe, so each query gets its own
+	private static Calendar gmtCalendar() {
+		return Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+	}
+	
+	private Map<String, Map<Integer, String>> getLabels(PooledConnection con) throws SQLException {
+		Map<String, Map<Integer, String>> current = labels;
+		if (current != null && System.currentTimeMillis() - labelsLoaded < labelCacheTTL) {
+			return current;
+		}
+		
+		synchronized (this) {
+			// Another thread may have loaded them while we waited
+			if (labels != null && System.currentTimeMillis() - labelsLoaded < labelCacheTTL) {
+				return labels;
+			}
+			
+			Map<String, Map<Integer, String>> loaded = new HashMap<String, Map<Integer, String>>();
+			ResultSet rs = con.prepareStatement(LABELS_SQL).executeQuery();
+			while (rs.next()) {
+				Map<Integer, String> values = loaded.get(rs.getString(1));
+				if (values == null) {
+					values = new HashMap<Integer, String>();
+					loaded.put(rs.getString(1), values);
+				}
+				values.put(rs.getInt(2), rs.getString(3));
+			}
+			rs.close();
+			
+			for (Map.Entry<String, Map<Integer, String>> entry : loaded.entrySet()) {
+				entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+			}
+			labels = Collections.unmodifiableMap(loaded);
+			labelsLoaded = System.currentTimeMillis();
+			logger.debug("Loaded opportunity labels for {} attributes", labels.size());
+			return labels;
+		}
+	}
 
-}
\ No newline at end of file
+}
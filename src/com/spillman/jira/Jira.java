@@ -4,6 +4,7 @@ public class Jira {
 	//SQL Fields
 	public static final String AGENCY_CODE						= "AgencyCode";
 	public static final String ASSIGNEE							= "Assignee";
+	public static final String CREATED							= "CREATED";
 	public static final String DATE_WORKED						= "DateWorked";
 	public static final String DESCRIPTION						= "Description";
 	public static final String EPIC								= "Epic";
@@ -16,9 +17,12 @@ public class Jira {
 	public static final String ISSUE_KEY						= "IssueKey";
 	public static final String ISSUE_STATUS						= "IssueStatus";
 	public static final String ISSUE_TYPE						= "IssueType";	
+	public static final String ISSUES_UPDATED					= "IssuesUpdated";
 	public static final String ISSUENUM							= "Issuenum";
 	public static final String ORIGINAL_ESTIMATE				= "OriginalEstimate";
+	public static final String ORIGINAL_KEY					= "ORIGINALKEY";
 	public static final String PKEY								= "pkey";
+	public static final String PNAME								= "pname";
 	public static final String PROJECT							= "PROJECT";
 	public static final String REMAINING_ESTIMATE				= "RemainingEstimate";
 	public static final String SQL_ID							= "ID";
@@ -34,6 +38,7 @@ public class Jira {
 	public static final String TOTAL_SUBTASKS_TIME_SPENT_CLOSED	= "Total_Subtasks_Time_Spent_Closed";
 	public static final String UPDATED							= "Updated";
 	public static final String WORKER							= "Worker";
+	public static final String WORK_LOG_UPDATED					= "WorkLogUpdated";
 	
 	// JSON Fields
 	public static final String JSON_PROJECT						= "project";
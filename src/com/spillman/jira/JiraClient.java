@@ -1,10 +1,13 @@
 package com.spillman.jira;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,6 +17,7 @@ import com.spillman.common.Account;
 import com.spillman.common.Project;
 import com.spillman.common.Task;
 import com.spillman.common.WorkLog;
+import com.spillman.sql.ConnectionPool;
 
 public class JiraClient {
 	private static final Logger logger = LogManager.getLogger();
@@ -28,13 +32,19 @@ public class JiraClient {
 	private SyncProperties properties;
 	private HashMap<String,String> programPrefix;
 	
+	// Epic name (in lower case) -> epic key, hashed by Jira project ID. Filled
+	// from the epics read each cycle and added to when an epic is created.
+	private ConcurrentHashMap<String, Map<String, String>> epicKeys = new ConcurrentHashMap<String, Map<String, String>>();
+	
 	public JiraClient(SyncProperties props) throws JiraException {
 		logger.entry(props);
 		
 		// The Jira client interacts with Jira through Jira's REST API and
 		// through direct access to the SQL database. 
 		this.restClient = new JiraRestClient(props);
-		this.sqlClient = new JiraSQLClient(props.getJiraJDBCConnectionString());
+		this.sqlClient = new JiraSQLClient(new ConnectionPool(props.getJiraJDBCConnectionString(), props.getSQLPoolSize(),
+				props.getSQLMaxIdleTime(), props.getSQLMaxLifetime(), props.getSQLValidationTimeout()),
+				props.getJiraProjectCacheTTL(), props.getJiraReadTimeout());
 
 		this.jiraBrowseUrl = props.getJiraBrowseUrl();
 		this.programPrefix = props.getProgramPrefixMap();
@@ -62,12 +72,16 @@ public class JiraClient {
 		if (task.getJiraEpicName() != null && !task.getJiraEpicName().isEmpty() 
 			&& task.getJiraIssueKey() != null && !task.getJiraIssueKey().isEmpty()) {
 			
-			// Search Jira for an epic with the specified name
-			String epicKey = null;
-			try {
-				epicKey = sqlClient.getEpicKey(task.getJiraEpicName(), project.getJiraProjectID());
-			} catch (JiraIssueNotFoundException e) {
-				logger.catching(e);
+			// Look for an epic with the specified name in the project's epics, then
+			// search Jira in case it was added since they were read
+			String epicKey = lookupEpicKey(project.getJiraProjectID(), task.getJiraEpicName());
+			if (epicKey == null) {
+				try {
+					epicKey = sqlClient.getEpicKey(task.getJiraEpicName(), project.getJiraProjectID());
+					addEpicKey(project.getJiraProjectID(), task.getJiraEpicName(), epicKey);
+				} catch (JiraIssueNotFoundException e) {
+					logger.catching(e);
+				}
 			}
 			
 			try {
@@ -75,6 +89,7 @@ public class JiraClient {
 				if (epicKey == null) {
 					Task t = restClient.createEpic(project.getJiraProjectID(), devteam, task.getJiraEpicName());
 					epicKey = t.getJiraIssueKey();
+					addEpicKey(project.getJiraProjectID(), task.getJiraEpicName(), epicKey);
 				}
 				
 				// Link the new issue to the epic
@@ -86,6 +101,34 @@ public class JiraClient {
 		
 		return task;
 	}
+	
+	private String lookupEpicKey(String projectID, String epicName) {
+		Map<String, String> keys = epicKeys.get(projectID);
+		return keys == null ? null : keys.get(epicName.toLowerCase());
+	}
+	
+	private void addEpicKey(String projectID, String epicName, String epicKey) {
+		Map<String, String> keys = epicKeys.get(projectID);
+		if (keys == null) {
+			epicKeys.putIfAbsent(projectID, new ConcurrentHashMap<String, String>());
+			keys = epicKeys.get(projectID);
+		}
+		keys.put(epicName.toLowerCase(), epicKey);
+	}
+	
+	/*
+	 * Replaces the project's epic name index with the epics just read from Jira.
+	 * If two epics have the same name the first one is used, as with the SQL lookup.
+	 */
+	private void indexEpics(String projectID, List<Task> epics) {
+		Map<String, String> keys = new ConcurrentHashMap<String, String>();
+		for (Task epic : epics) {
+			if (epic.getName() != null && epic.getJiraIssueKey() != null && !keys.containsKey(epic.getName().toLowerCase())) {
+				keys.put(epic.getName().toLowerCase(), epic.getJiraIssueKey());
+			}
+		}
+		epicKeys.put(projectID, keys);
+	}
 
 	private String getJiraDevTeam(Project project) throws JiraException {
 		String devteam = properties.lookupDevTeam(project.getWorkfrontProgram());
@@ -115,6 +158,46 @@ public class JiraClient {
 		return logger.exit(worklog);
 	}
 	
+	/**
+	 * Returns when the project's first worklog entry created at or after startTime
+	 * and before endTime was created, or null if there are none. A null startTime
+	 * means from the beginning.
+	 */
+	public Date getFirstWorkLogTime(Project project, Date startTime, Date endTime) throws JiraException {
+		logger.entry(project, startTime, endTime);
+		
+		java.sql.Timestamp first = sqlClient.getFirstWorkLogTime(project.getJiraProjectID(),
+				new java.sql.Timestamp(startTime == null ? 0 : startTime.getTime()), new java.sql.Timestamp(endTime.getTime()));
+		
+		return logger.exit(first == null ? null : new Date(first.getTime()));
+	}
+	
+	/**
+	 * Returns the new worklog entries for many projects at once, hashed by Jira
+	 * project ID. Each project's entries start from its last Jira sync.
+	 */
+	public Map<String, ArrayList<WorkLog>> getWorkLogEntries(Collection<Project> projects, Date endTime) throws JiraException {
+		logger.entry(projects.size(), endTime);
+		
+		Map<String, java.sql.Timestamp> startTimes = new HashMap<String, java.sql.Timestamp>();
+		for (Project project : projects) {
+			Date startTime = project.getLastJiraSync();
+			startTimes.put(project.getJiraProjectID(), startTime == null ? null : new java.sql.Timestamp(startTime.getTime()));
+		}
+		
+		Map<String, ArrayList<WorkLog>> worklog = sqlClient.getWorkLog(startTimes, new java.sql.Timestamp(endTime.getTime()));
+		int count = 0;
+		for (ArrayList<WorkLog> entries : worklog.values()) {
+			for (WorkLog wl : entries) {
+				wl.setJiraIssueUrl(jiraBrowseUrl + wl.getJiraIssueKey());
+			}
+			count += entries.size();
+		}
+		
+		logger.debug("Found {} work log entries for {} projects before {}", count, projects.size(), endTime);
+		return logger.exit(worklog);
+	}
+	
 	public Task getIssue(Task task) throws JiraException {
 		logger.entry(task);
 		
@@ -137,6 +220,142 @@ public class JiraClient {
 		return logger.exit(jiraIssue);
 	}
 	
+	/**
+	 * Returns the current state in Jira of every task in the project that is
+	 * synced with Jira, hashed by Workfront task ID. Issues are read in bulk
+	 * rather than one at a time. Tasks whose issue can't be found are left out.
+	 */
+	public Map<String, Task> getIssues(Project project) throws JiraException {
+		return getIssues(project, null);
+	}
+	
+	/**
+	 * Same as getIssues(project), but only the issues updated in Jira since the
+	 * given time are read and returned. Epics are always read, since their
+	 * rolled-up numbers change when a story is moved to another epic or deleted,
+	 * which doesn't update the epic. If changedSince is null every synced issue
+	 * is read.
+	 */
+	public Map<String, Task> getIssues(Project project, Date changedSince) throws JiraException {
+		logger.entry(project, changedSince);
+		
+		List<String> epicIDs = new ArrayList<String>();
+		List<String> issueIDs = new ArrayList<String>();
+		getSyncedIssueIDs(project, issueIDs, epicIDs);
+		
+		java.sql.Timestamp since = changedSince == null ? null : new java.sql.Timestamp(changedSince.getTime());
+		Map<String, Task> issues = new HashMap<String, Task>();
+		if (!epicIDs.isEmpty()) {
+			issues.putAll(sqlClient.getEpicsByIds(epicIDs));
+		}
+		if (!issueIDs.isEmpty()) {
+			issues.putAll(sqlClient.getIssues(issueIDs, since));
+		}
+		
+		return logger.exit(matchIssues(project, issues, changedSince, epicIDs.size() + issueIDs.size()));
+	}
+	
+	/**
+	 * Reads everything the sync needs from Jira for a project in one round trip:
+	 * the synced issues, as getIssues(project, changedSince) returns them, the
+	 * project's epics if readEpics is true, and its worklog from the last Jira
+	 * sync up to workLogEnd if workLogEnd isn't null. A project with more
+	 * synced issues than fit in one batch is read with separate queries.
+	 */
+	public ProjectRead readProject(Project project, Date changedSince, boolean readEpics, Date workLogEnd) throws JiraException {
+		logger.entry(project, changedSince, readEpics, workLogEnd);
+		
+		List<String> epicIDs = new ArrayList<String>();
+		List<String> issueIDs = new ArrayList<String>();
+		getSyncedIssueIDs(project, issueIDs, epicIDs);
+		
+		ProjectRead read;
+		if (epicIDs.size() + issueIDs.size() > JiraSQLClient.MAX_PROJECT_READ_IDS) {
+			logger.debug("Too many issues to read projectID {} in one batch", project.getJiraProjectID());
+			read = new ProjectRead();
+			read.setIssues(getIssues(project, changedSince));
+			if (readEpics) {
+				read.setEpics(getEpics(project.getJiraProjectID()));
+			}
+			if (workLogEnd != null) {
+				read.setWorkLog(getWorkLogEntries(project, project.getLastJiraSync(), workLogEnd));
+			}
+			return logger.exit(read);
+		}
+		
+		read = sqlClient.readProject(project.getJiraProjectID(), issueIDs, epicIDs, 
+				changedSince == null ? null : new java.sql.Timestamp(changedSince.getTime()), readEpics,
+				project.getLastJiraSync() == null ? null : new java.sql.Timestamp(project.getLastJiraSync().getTime()),
+				workLogEnd == null ? null : new java.sql.Timestamp(workLogEnd.getTime()));
+		
+		read.setIssues(matchIssues(project, read.getIssues(), changedSince, epicIDs.size() + issueIDs.size()));
+		if (read.getEpics() != null) {
+			for (Task t : read.getEpics()) {
+				t.setJiraIssueUrl(jiraBrowseUrl + t.getJiraIssueKey());
+			}
+			indexEpics(project.getJiraProjectID(), read.getEpics());
+		}
+		if (read.getWorkLog() != null) {
+			for (WorkLog wl : read.getWorkLog()) {
+				wl.setJiraIssueUrl(jiraBrowseUrl + wl.getJiraIssueKey());
+			}
+		}
+		
+		return logger.exit(read);
+	}
+	
+	// Splits the IDs of the project's issues that are synced with Jira into epics and other issues
+	private void getSyncedIssueIDs(Project project, List<String> issueIDs, List<String> epicIDs) {
+		for (Task task : project.getWorkfrontDevTasks().values()) {
+			if (!task.isSyncWithJira() || task.getJiraIssueID() == null || task.getJiraIssueID().isEmpty()) {
+				continue;
+			}
+			if (epicIssueType.equals(task.getJiraIssueType())) {
+				epicIDs.add(task.getJiraIssueID());
+			} else {
+				issueIDs.add(task.getJiraIssueID());
+			}
+		}
+	}
+	
+	/*
+	 * Matches the issues read from Jira, hashed by issue ID, to the project's tasks
+	 * and returns them hashed by Workfront task ID.
+	 */
+	private Map<String, Task> matchIssues(Project project, Map<String, Task> issues, Date changedSince, int count) {
+		Map<String, Task> jiraIssues = new HashMap<String, Task>();
+		for (Task task : project.getWorkfrontDevTasks().values()) {
+			if (!task.isSyncWithJira() || task.getJiraIssueID() == null || task.getJiraIssueID().isEmpty()) {
+				continue;
+			}
+			
+			Task jiraIssue = issues.get(task.getJiraIssueID());
+			if (jiraIssue != null && !epicIssueType.equals(task.getJiraIssueType())) {
+				// We are not syncing duration or description for non-epic issues.
+				jiraIssue.setDuration(task.getDuration());
+				jiraIssue.setDescription(task.getDescription());
+			}
+			
+			if (jiraIssue == null) {
+				// Issues that haven't changed since changedSince aren't read
+				if (changedSince == null || epicIssueType.equals(task.getJiraIssueType())) {
+					logger.warn("No issue found for issueID {}", task.getJiraIssueID());
+				}
+				continue;
+			}
+			
+			jiraIssue.setJiraIssueUrl(jiraBrowseUrl + jiraIssue.getJiraIssueKey());
+			jiraIssues.put(task.getWorkfrontTaskID(), jiraIssue);
+		}
+		
+		if (changedSince == null) {
+			logger.debug("Found {} of {} issues for projectID {}", jiraIssues.size(), count, project.getJiraProjectID());
+		} else {
+			logger.debug("Read {} of {} issues changed since {} for projectID {}", jiraIssues.size(), count, changedSince, project.getJiraProjectID());
+		}
+		return jiraIssues;
+	}
+	
 	public ArrayList<Task> getEpics(String projectID) throws JiraException {
 		logger.entry(projectID);
 		
@@ -144,11 +363,40 @@ public class JiraClient {
 		for (Task t : tasks) {
 			t.setJiraIssueUrl(jiraBrowseUrl + t.getJiraIssueKey());
 		}
+		indexEpics(projectID, tasks);
 		
 		logger.debug("Found {} epics for projectID {}", tasks.size(), projectID);
 		return logger.exit(tasks);
 	}
 	
+	/**
+	 * Returns the last time anything changed in Jira for each of the given
+	 * projects, hashed by Jira project ID. This is a single cheap query, so it
+	 * can be used to skip projects that haven't changed.
+	 */
+	public Map<String, Date> getLastChanges(Collection<String> projectIDs) throws JiraException {
+		logger.entry(projectIDs);
+		Map<String, Date> changes = new HashMap<String, Date>(sqlClient.getLastChanges(projectIDs));
+		return logger.exit(changes);
+	}
+	
+	/**
+	 * Returns the epics of many projects at once, hashed by Jira project ID.
+	 */
+	public Map<String, ArrayList<Task>> getEpics(Collection<String> projectIDs) throws JiraException {
+		logger.entry(projectIDs);
+		
+		Map<String, ArrayList<Task>> epics = sqlClient.getEpics(projectIDs);
+		for (Map.Entry<String, ArrayList<Task>> entry : epics.entrySet()) {
+			for (Task t : entry.getValue()) {
+				t.setJiraIssueUrl(jiraBrowseUrl + t.getJiraIssueKey());
+			}
+			indexEpics(entry.getKey(), entry.getValue());
+		}
+		
+		return logger.exit(epics);
+	}
+	
 	public void addProjectToJira(Project project) throws JiraException {
 		logger.entry(project);
 		
@@ -168,8 +416,11 @@ public class JiraClient {
 			String projectID = restClient.createProject(params);
 			project.setJiraProjectID(projectID);
 			project.setJiraProjectKey((String)params.get(Jira.PROJECT_KEY));
+			sqlClient.addProject((String)params.get(Jira.PROJECT_KEY), (String)params.get(Jira.PROJECT_NAME));
 		} catch (JiraRestAPIException e) {
 			logger.catching(e);
+			// The key or name may have been taken since they were loaded
+			sqlClient.resetProjectNamespace();
 		}
 		
 		logger.exit();
@@ -240,30 +491,23 @@ public class JiraClient {
 			// generate a unique project key
 
 			// Resize the project key so there is enough room to add a 2 character suffix
-			projectKey = projectKey.substring(0, Math.min(projectKey.length(), MAX_KEY_LENGTH - 2));
+			String prefix = projectKey.substring(0, Math.min(projectKey.length(), MAX_KEY_LENGTH - 2));
 
-			char suffixChar1 = 'A';
-			char suffixChar2 = 'A';
-
-			// Generate the initial project key and check to see if it exists
-			projectKey = projectKey + suffixChar1 + suffixChar2;
-			
-			logger.debug("Trying project key '{}'...", projectKey);
-			while (sqlClient.projectKeyExists(projectKey)) {
-				// Increment the suffix characters
-				suffixChar2++;
-				if (suffixChar2 > 'Z') {
-					suffixChar2 = 'A';
-					suffixChar1++;
-					if (suffixChar1 > 'Z') {
-						throw new JiraException("Cannot create unique project key for project '" + project.getName() + "'");
+			// Find the first suffix, AA through ZZ, that isn't taken by one of the
+			// keys that start with the same prefix
+			SortedSet<String> taken = sqlClient.getProjectKeysStartingWith(prefix);
+			projectKey = null;
+			for (char suffixChar1 = 'A'; suffixChar1 <= 'Z' && projectKey == null; suffixChar1++) {
+				for (char suffixChar2 = 'A'; suffixChar2 <= 'Z' && projectKey == null; suffixChar2++) {
+					if (!taken.contains(prefix + suffixChar1 + suffixChar2)) {
+						projectKey = prefix + suffixChar1 + suffixChar2;
 					}
 				}
-				
-				// Generate the new project key
-				projectKey = projectKey.substring(0,projectKey.length() - 2) + suffixChar1 + suffixChar2;
-				logger.debug("Trying project key '{}'...", projectKey);
-			} 
+			}
+			if (projectKey == null) {
+				throw new JiraException("Cannot create unique project key for project '" + project.getName() + "'");
+			}
+			logger.debug("Using project key '{}' ({} keys start with '{}')", projectKey, taken.size(), prefix);
 		}
 		
 		return logger.exit(projectKey);
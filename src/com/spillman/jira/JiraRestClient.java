@@ -12,6 +12,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -46,6 +52,8 @@ public class JiraRestClient {
 	private String epicIssueType;
 	private String epicStoryLinkName;
 	private HashMap<String,String> issueTypes;
+	private ExecutorService asyncExecutor;
+	private Semaphore inFlight;
 
 	public JiraRestClient (SyncProperties props) {
 		this.createProjectUrl = props.getJiraCreateProjectUrl();
@@ -59,6 +67,18 @@ public class JiraRestClient {
 		String username = props.getJiraUsername();
 		String password = props.getJiraPassword();
 		this.authToken = Base64.encode(new String(username + ":" + password).getBytes());
+		
+		// Limit how many requests, from any thread, can be waiting on Jira at the same time.
+		// Asynchronous calls run on the same number of threads.
+		int maxInFlight = Math.max(1, props.getJiraMaxInFlight());
+		this.inFlight = new Semaphore(maxInFlight, true);
+		this.asyncExecutor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jira-async");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
 
 	public String createProject(Map<String, Object> params) throws JiraRestAPIException {
@@ -128,6 +148,46 @@ public class JiraRestClient {
 		return true;
 	}
 	
+	public CompletableFuture<Task> createEpicAsync(final String jiraProjectID, final String devteam, final String name) {
+		return async(new Callable<Task>() {
+			public Task call() throws JiraRestAPIException {
+				return createEpic(jiraProjectID, devteam, name);
+			}
+		});
+	}
+	
+	public CompletableFuture<Task> createIssueAsync(final String jiraProjectID, final String devteam, final Task task) {
+		return async(new Callable<Task>() {
+			public Task call() throws JiraRestAPIException {
+				createIssue(jiraProjectID, devteam, task);
+				return task;
+			}
+		});
+	}
+	
+	public CompletableFuture<Boolean> linkIssueToEpicAsync(final String issueKey, final String epicKey) {
+		return async(new Callable<Boolean>() {
+			public Boolean call() throws JiraRestAPIException {
+				return linkIssueToEpic(issueKey, epicKey);
+			}
+		});
+	}
+	
+	private <T> CompletableFuture<T> async(final Callable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		asyncExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					future.complete(call.call());
+				}
+				catch (Exception e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
+	
 	private String formatParameters(String jiraProjectID, String devteam, Task task) throws JiraRestAPIException {
 		HashMap<String, Object> project = new HashMap<String, Object>();
 		project.put(Jira.JSON_ID, jiraProjectID);
@@ -172,6 +232,13 @@ public class JiraRestClient {
 	private JSONObject request(String url, String params) throws JiraRestAPIException {
 		HttpURLConnection conn = null;
 
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JiraRestAPIException(e);
+		}
+
 		try {
 			conn = createConnection(url, METHOD_POST);
 
@@ -215,6 +282,7 @@ public class JiraRestClient {
 			if (conn != null) {
 				conn.disconnect();
 			}
+			inFlight.release();
 		}
 	}
 
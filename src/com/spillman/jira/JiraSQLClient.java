@@ -2,11 +2,19 @@ package com.spillman.jira;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import com.spillman.common.Account;
 import com.spillman.common.Task;
 import com.spillman.common.WorkLog;
+import com.spillman.sql.ConnectionPool;
+import com.spillman.sql.InListStatement;
+import com.spillman.sql.PooledConnection;
 
 public class JiraSQLClient {
 	private final static String EPICS_QUERY = 
@@ -20,25 +28,61 @@ public class JiraSQLClient {
 	private final static String EPIC_SQL = EPICS_QUERY 
 			+ "WHERE EPIC_ID = ?";			
 
+	private final static String PORTFOLIO_EPICS_SQL = EPICS_QUERY 
+			+ "WHERE PROJECT IN " + InListStatement.VALUES;
+
+	private final static String EPICS_BY_ID_SQL = EPICS_QUERY 
+			+ "WHERE EPIC_ID IN " + InListStatement.VALUES;
+
 	private final static String WORK_LOG_WITH_EPIC_SQL =
 			"SELECT ID, issueid, ProjectID, Issuenum, DateWorked, HoursWorked, Worker, Description, Epic_Issuenum, IssueKey, Epic_ID "
 			+ "FROM     ProjectWorkLogWithEpic "
 			+ "WHERE  (ProjectID = ?) AND (CREATED >= ?) AND (CREATED < ?)";
 	
+	private final static String FIRST_WORK_LOG_SQL =
+			"SELECT MIN(CREATED) AS CREATED "
+			+ "FROM     ProjectWorkLogWithEpic "
+			+ "WHERE  (ProjectID = ?) AND (CREATED >= ?) AND (CREATED < ?)";
+	
+	// The most issues and epics that can be read in one call to readProject(). Each
+	// gets an IN list of at most half of InListStatement.MAX_VALUES, so together
+	// they stay under SQL Server's limit of 2100 parameters.
+	public final static int MAX_PROJECT_READ_IDS = InListStatement.MAX_VALUES / 2;
+	
+	// Rows fetched from the server at a time when reading a project's worklog
+	private final static int WORK_LOG_FETCH_SIZE = 500;
+	
 	private final static String WORK_LOG_WITH_EPIC_NO_START_DATE_SQL =
 			"SELECT ID, issueid, ProjectID, Issuenum, DateWorked, HoursWorked, Worker, Description, Epic_Issuenum, IssueKey, Epic_ID "
 			+ "FROM     ProjectWorkLogWithEpic "
 			+ "WHERE  (ProjectID = ?) AND (CREATED < ?)";
 	
-	private final static String VALID_KEY_SQL =
-			"SELECT [pname] "
-			+ "FROM [jira].[project] "
-			+ "WHERE pkey = ? OR ORIGINALKEY = ?";
-
-	private final static String VALID_PROJECT_NAME_SQL =
-			"SELECT [pname] "
-			+ "FROM [jira].[project] "
-			+ "WHERE pname = ?";
+	// Worklog for many projects at once. Each project is joined with its own
+	// start time, so one project that hasn't been synced for a while doesn't
+	// pull in old entries for all the others. PROJECT_START_TIMES is replaced
+	// with a row of (project ID, start time) parameters for each project.
+	private final static String PROJECT_START_TIMES = "(?, ?)*";
+	private final static String PORTFOLIO_WORK_LOG_SQL =
+			"SELECT w.ID, w.issueid, w.ProjectID, w.Issuenum, w.DateWorked, w.HoursWorked, w.Worker, w.Description, w.Epic_Issuenum, w.IssueKey, w.Epic_ID "
+			+ "FROM     ProjectWorkLogWithEpic w "
+			+ "INNER JOIN (VALUES " + PROJECT_START_TIMES + ") AS s (ProjectID, StartTime) ON w.ProjectID = s.ProjectID "
+			+ "WHERE  (w.CREATED < ?) AND (s.StartTime IS NULL OR w.CREATED >= s.StartTime)";
+	
+	// SQL Server allows at most 1000 rows in a VALUES list
+	private final static int PORTFOLIO_WORK_LOG_PROJECTS = 512;
+	
+	// The last time anything changed in each project's issues or worklog
+	private final static String PROJECT_CHANGES_SQL =
+			"SELECT ji.PROJECT, MAX(ji.UPDATED) AS IssuesUpdated, MAX(wl.Changed) AS WorkLogUpdated "
+			+ "FROM     jira.jiraissue ji OUTER APPLY "
+			+ "                  (SELECT MAX(CASE WHEN w.UPDATED > w.CREATED THEN w.UPDATED ELSE w.CREATED END) AS Changed "
+			+ "                   FROM jira.worklog w WHERE w.issueid = ji.ID) wl "
+			+ "WHERE ji.PROJECT IN " + InListStatement.VALUES + " "
+			+ "GROUP BY ji.PROJECT";
+	
+	private final static String PROJECT_NAMESPACE_SQL =
+			"SELECT [pkey], [ORIGINALKEY], [pname] "
+			+ "FROM [jira].[project]";
 	
 	private final static String EPIC_ID_SQL =
 			"SELECT jira.jiraissue.ID, jira.project.pkey + '-' + CONVERT (varchar, jira.jiraissue.issuenum) as pkey "
@@ -57,23 +101,44 @@ public class JiraSQLClient {
 			+ "		  FROM [dbo].[IssueSummary] "
 			+ "		  WHERE [ID] = ?";
 
-	private Connection con = null;
-	private Statement pilotAgencyStatement = null;
-	private PreparedStatement backlogItemsStatement = null;
-	private PreparedStatement epicIdStatement = null;
-	private PreparedStatement epicStatement = null;
-	private PreparedStatement epicsSummaryStatement = null;
-	private PreparedStatement issueStatement = null;
-	private PreparedStatement validKeyStatement = null;
-	private PreparedStatement validProjectNameStatement = null;
-	private PreparedStatement workLogStatement = null;
-	private PreparedStatement workLogNoStartDateStatement = null;
+	private final static String ISSUES_SQL = 
+			"SELECT [ID], [Summary], [IssueType], [IssueKey], [IssueStatus] "
+			+ "		  FROM [dbo].[IssueSummary] "
+			+ "		  WHERE [ID] IN " + InListStatement.VALUES;
 
+	private final static String CHANGED_ISSUES_SQL = 
+			"SELECT [ID], [Summary], [IssueType], [IssueKey], [IssueStatus] "
+			+ "		  FROM [dbo].[IssueSummary] "
+			+ "		  WHERE [ID] IN (SELECT ID FROM jira.jiraissue WHERE UPDATED > ?) "
+			+ "		    AND [ID] IN " + InListStatement.VALUES;
+
+	// Each query runs on a connection from the pool, which keeps its own
+	// prepared statements, so queries from different threads run at the same time.
+	private ConnectionPool pool;
+	
+	// The keys and names of all the Jira projects, reloaded when they expire
+	private ProjectNamespace projectNamespace = null;
+	private long projectCacheTTL;
+	
+	// Seconds readProject() waits for its batch before giving up
+	private int readTimeout;
 	
-	public JiraSQLClient(String connectionString) throws JiraException {
+	/**
+	 * @param readTimeout milliseconds to wait for readProject() before giving up
+	 */
+	public JiraSQLClient(ConnectionPool pool, long projectCacheTTL, long readTimeout) throws JiraException {
+		this.pool = pool;
+		this.projectCacheTTL = projectCacheTTL;
+		this.readTimeout = (int)Math.max(1, (readTimeout + 999) / 1000);
+		
+		// Make sure we can connect before the sync starts.
 		try {
 			Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
-	    	con = DriverManager.getConnection(connectionString);
+			pool.execute(new ConnectionPool.Work<Void>() {
+				public Void run(PooledConnection con) throws SQLException {
+					return null;
+				}
+			});
 		} catch (ClassNotFoundException e) {
 			throw new JiraException(e);
 		} catch (SQLException e) {
@@ -83,240 +148,662 @@ public class JiraSQLClient {
 	
 	
 	public List<Account> getPilotAgencies() throws JiraException {
-		if (pilotAgencyStatement == null) {
-			try { pilotAgencyStatement = con.createStatement(); } 
-			catch (SQLException e) { throw new JiraException(e); }
+		try {
+			return pool.execute(new ConnectionPool.Work<List<Account>>() {
+				public List<Account> run(PooledConnection con) throws SQLException {
+					List<Account> accounts = new ArrayList<Account>();
+					ResultSet rs = con.createStatement().executeQuery(PILOT_AGENCIES_SQL);
+					while (rs.next()) {
+						accounts.add(new Account(null, null, rs.getString(Jira.AGENCY_CODE)));
+					}
+					rs.close();
+					return accounts;
+				}
+			});
+		} catch (SQLException e) {
+			throw new JiraException(e);
 		}
-
-		List<Account> accounts = new ArrayList<Account>();
-		
+	}
+	
+	
+	public String getEpicKey(final String name, final String projectID) throws JiraException {
+		String key;
 		try {
-			ResultSet rs = pilotAgencyStatement.executeQuery(PILOT_AGENCIES_SQL);
-			while (rs.next()) {
-				accounts.add(new Account(null, null, rs.getString(Jira.AGENCY_CODE)));
-			}
-			return accounts;
+			key = pool.execute(new ConnectionPool.Work<String>() {
+				public String run(PooledConnection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(EPIC_ID_SQL);
+					ps.setString(1, name);
+					ps.setInt(2, Integer.parseInt(projectID));
+					ResultSet rs = ps.executeQuery();
+					String pkey = rs.next() ? rs.getString(Jira.PKEY) : null;
+					rs.close();
+					return pkey;
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
+		
+		if (key == null) {
+			throw new JiraIssueNotFoundException("No epic foud for name " + name + " in project " + projectID);
+		}
+		return key;
 	}
 	
 	
-	public String getEpicKey(String name, String projectID) throws JiraException {
-		if (epicIdStatement == null) {
-			try { epicIdStatement = con.prepareStatement(EPIC_ID_SQL); } 
-			catch (SQLException e) { throw new JiraException(e); }
+	public ArrayList<Task> getEpics(final String projectID) throws JiraException {
+		try {
+			return pool.execute(new ConnectionPool.Work<ArrayList<Task>>() {
+				public ArrayList<Task> run(PooledConnection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(EPICS_SUMMARY_SQL);
+					ps.setInt(1, Integer.parseInt(projectID));
+					return processEpics(ps.executeQuery());
+				}
+			});
+		} catch (SQLException e) {
+			throw new JiraException(e);
 		}
-
+	}
+	
+	
+	/**
+	 * Returns the epics of all the given projects, hashed by project ID.
+	 */
+	public Map<String, ArrayList<Task>> getEpics(final Collection<String> projectIDs) throws JiraException {
 		try {
-			epicIdStatement.setString(1, name);
-			epicIdStatement.setInt(2, Integer.parseInt(projectID));
-			ResultSet rs = epicIdStatement.executeQuery();
-			if (rs.next()) {
-				return rs.getString(Jira.PKEY);
-			} else {
-				throw new JiraIssueNotFoundException("No epic foud for name " + name + " in project " + projectID);
-			}
+			return pool.execute(new ConnectionPool.Work<Map<String, ArrayList<Task>>>() {
+				public Map<String, ArrayList<Task>> run(PooledConnection con) throws SQLException {
+					InListStatement statement = con.prepareInListStatement(PORTFOLIO_EPICS_SQL);
+					Map<String, ArrayList<Task>> epics = new HashMap<String, ArrayList<Task>>();
+					for (String projectID : projectIDs) {
+						epics.put(projectID, new ArrayList<Task>());
+					}
+					for (List<String> chunk : InListStatement.chunks(new ArrayList<String>(projectIDs))) {
+						ResultSet rs = statement.prepare(chunk).executeQuery();
+						while (rs.next()) {
+							epics.get(Integer.toString(rs.getInt(Jira.PROJECT))).add(createEpic(rs));
+						}
+						rs.close();
+					}
+					return epics;
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
 	}
 	
 	
-	public ArrayList<Task> getEpics(String projectID) throws JiraException {
-		if (epicsSummaryStatement == null) {
-			try { epicsSummaryStatement = con.prepareStatement(EPICS_SUMMARY_SQL); } 
-			catch (SQLException e) { throw new JiraException(e); }
+	/**
+	 * Returns the last time an issue or worklog entry changed in each of the
+	 * given projects, hashed by project ID. A project with no issues gets the
+	 * start of the epoch.
+	 */
+	public Map<String, Timestamp> getLastChanges(final Collection<String> projectIDs) throws JiraException {
+		try {
+			return pool.execute(new ConnectionPool.Work<Map<String, Timestamp>>() {
+				public Map<String, Timestamp> run(PooledConnection con) throws SQLException {
+					InListStatement statement = con.prepareInListStatement(PROJECT_CHANGES_SQL);
+					Map<String, Timestamp> changes = new HashMap<String, Timestamp>();
+					for (String projectID : projectIDs) {
+						changes.put(projectID, new Timestamp(0));
+					}
+					for (List<String> chunk : InListStatement.chunks(new ArrayList<String>(projectIDs))) {
+						ResultSet rs = statement.prepare(chunk).executeQuery();
+						while (rs.next()) {
+							Timestamp changed = new Timestamp(0);
+							Timestamp issues = rs.getTimestamp(Jira.ISSUES_UPDATED);
+							Timestamp worklog = rs.getTimestamp(Jira.WORK_LOG_UPDATED);
+							if (issues != null && issues.after(changed)) {
+								changed = issues;
+							}
+							if (worklog != null && worklog.after(changed)) {
+								changed = worklog;
+							}
+							changes.put(Integer.toString(rs.getInt(Jira.PROJECT)), changed);
+						}
+						rs.close();
+					}
+					return changes;
+				}
+			});
+		} catch (SQLException e) {
+			throw new JiraException(e);
 		}
-
+	}
+	
+	
+	public Task getEpic(final String issueID) throws JiraException {
+		ArrayList<Task> epics;
 		try {
-			epicsSummaryStatement.setInt(1, Integer.parseInt(projectID));
-			return processEpics(epicsSummaryStatement.executeQuery());
+			epics = pool.execute(new ConnectionPool.Work<ArrayList<Task>>() {
+				public ArrayList<Task> run(PooledConnection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(EPIC_SQL);
+					ps.setInt(1, Integer.parseInt(issueID));
+					return processEpics(ps.executeQuery());
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
+		
+		if (epics.size() < 1) {
+			throw new JiraIssueNotFoundException("No epic foud for issueID " + issueID);
+		}
+		return epics.get(0);
 	}
 	
 	
-	public Task getEpic(String issueID) throws JiraException {
-		if (epicStatement == null) {
-			try { epicStatement = con.prepareStatement(EPIC_SQL); } 
-			catch (SQLException e) { throw new JiraException(e); }
+	public Task getIssue(final String issueID) throws JiraException {
+		Task task;
+		try {
+			task = pool.execute(new ConnectionPool.Work<Task>() {
+				public Task run(PooledConnection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(ISSUE_SQL);
+					ps.setInt(1, Integer.parseInt(issueID));
+					ResultSet rs = ps.executeQuery();
+					Task task = processTask(rs);
+					rs.close();
+					return task;
+				}
+			});
+		} catch (SQLException e) {
+			throw new JiraException(e);
+		}
+		
+		if (task == null) {
+			throw new JiraIssueNotFoundException("No issue found for issueID " + issueID);
 		}
+		return task; 
+	}
 
+
+	/**
+	 * Returns the epics with the given issue IDs, hashed by issue ID. Epics
+	 * that can't be found are left out.
+	 */
+	public Map<String, Task> getEpicsByIds(final Collection<String> issueIDs) throws JiraException {
 		try {
-			epicStatement.setInt(1, Integer.parseInt(issueID));
-			ArrayList<Task> epics = processEpics(epicStatement.executeQuery());
-			if (epics.size() < 1) {
-				throw new JiraIssueNotFoundException("No epic foud for issueID " + issueID);
-			}
-			return epics.get(0);
+			return pool.execute(new ConnectionPool.Work<Map<String, Task>>() {
+				public Map<String, Task> run(PooledConnection con) throws SQLException {
+					Map<String, Task> epics = new HashMap<String, Task>();
+					for (List<String> chunk : InListStatement.chunks(new ArrayList<String>(issueIDs))) {
+						PreparedStatement ps = con.prepareInListStatement(EPICS_BY_ID_SQL).prepare(chunk);
+						for (Task epic : processEpics(ps.executeQuery())) {
+							epics.put(epic.getJiraIssueID(), epic);
+						}
+					}
+					return epics;
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
 	}
 	
 	
-	public Task getIssue(String issueID) throws JiraException {
-		if (issueStatement == null) {
-			try { issueStatement = con.prepareStatement(ISSUE_SQL); } 
-			catch (SQLException e) { throw new JiraException(e); }
-		}
-
+	/**
+	 * Returns the issues with the given issue IDs, hashed by issue ID. Issues
+	 * that can't be found are left out.
+	 */
+	public Map<String, Task> getIssues(Collection<String> issueIDs) throws JiraException {
+		return getIssues(issueIDs, null);
+	}
+	
+	
+	/**
+	 * Returns the issues with the given issue IDs that were updated after the
+	 * given time, hashed by issue ID. If changedSince is null all the issues
+	 * are returned.
+	 */
+	public Map<String, Task> getIssues(final Collection<String> issueIDs, final Timestamp changedSince) throws JiraException {
 		try {
-			issueStatement.setInt(1, Integer.parseInt(issueID));
-			ResultSet rs = issueStatement.executeQuery();
-			Task task = processTask(rs);
-			if (task == null) {
-				throw new JiraIssueNotFoundException("No issue found for issueID " + issueID);
-			}
-			return task; 
+			return pool.execute(new ConnectionPool.Work<Map<String, Task>>() {
+				public Map<String, Task> run(PooledConnection con) throws SQLException {
+					Map<String, Task> issues = new HashMap<String, Task>();
+					for (List<String> chunk : InListStatement.chunks(new ArrayList<String>(issueIDs))) {
+						PreparedStatement ps;
+						if (changedSince == null) {
+							ps = con.prepareInListStatement(ISSUES_SQL).prepare(chunk);
+						} else {
+							ps = con.prepareInListStatement(CHANGED_ISSUES_SQL, 1).prepare(chunk);
+							ps.setTimestamp(1, changedSince);
+						}
+						ResultSet rs = ps.executeQuery();
+						Task task;
+						while ((task = processTask(rs)) != null) {
+							issues.put(task.getJiraIssueID(), task);
+						}
+						rs.close();
+					}
+					return issues;
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
 	}
 
 
-	public ArrayList<WorkLog> getWorkLog(String projectID, Timestamp startTime, Timestamp endTime) throws JiraException {
-		if (workLogStatement == null) {
-			try { workLogStatement = con.prepareStatement(WORK_LOG_WITH_EPIC_SQL); } 
-			catch (SQLException e) { throw new JiraException(e); }
+	/**
+	 * Reads a project in one round trip. One batch of statements returns a
+	 * result set for each of:
+	 * - the given issues (only those updated since changedSince, as in getIssues(),
+	 *   if it isn't null)
+	 * - the given epics, all of them, as in getEpicsByIds()
+	 * - all of the project's epics, if readEpics is true
+	 * - the project's worklog created from workLogStart (or the beginning, if
+	 *   it's null) up to workLogEnd, if workLogEnd isn't null
+	 * The issues and epics together can't be more than MAX_PROJECT_READ_IDS.
+	 * The batch is cancelled if it runs longer than the read timeout.
+	 */
+	public ProjectRead readProject(final String projectID, final List<String> issueIDs, final List<String> epicIDs,
+			final Timestamp changedSince, final boolean readEpics,
+			final Timestamp workLogStart, final Timestamp workLogEnd) throws JiraException {
+		if (issueIDs.size() + epicIDs.size() > MAX_PROJECT_READ_IDS) {
+			throw new IllegalArgumentException("Too many issues for one read: " + (issueIDs.size() + epicIDs.size()));
 		}
-
+		
+		// Build the batch. The parts that aren't needed are left out.
+		StringBuilder sql = new StringBuilder();
+		if (!issueIDs.isEmpty()) {
+			sql.append(InListStatement.expand(changedSince == null ? ISSUES_SQL : CHANGED_ISSUES_SQL, issueIDs.size())).append(";\n");
+		}
+		if (!epicIDs.isEmpty()) {
+			sql.append(InListStatement.expand(EPICS_BY_ID_SQL, epicIDs.size())).append(";\n");
+		}
+		if (readEpics) {
+			sql.append(EPICS_SUMMARY_SQL).append(";\n");
+		}
+		if (workLogEnd != null) {
+			sql.append(workLogStart == null ? WORK_LOG_WITH_EPIC_NO_START_DATE_SQL : WORK_LOG_WITH_EPIC_SQL).append(";\n");
+		}
+		final String batch = sql.toString();
+		
+		ProjectRead read = new ProjectRead();
+		read.setIssues(new HashMap<String, Task>());
+		if (batch.isEmpty()) {
+			return read;
+		}
+		
 		try {
-			workLogStatement.setInt(1, Integer.parseInt(projectID));
-			workLogStatement.setTimestamp(2, startTime);
-			workLogStatement.setTimestamp(3, endTime);
-			return processWorkLogEntries(workLogStatement.executeQuery());
+			return pool.execute(new ConnectionPool.Work<ProjectRead>() {
+				public ProjectRead run(PooledConnection con) throws SQLException {
+					// Each mix of list sizes and parts is a different batch, so it's
+					// closed after use rather than kept with the connection's statements
+					PreparedStatement ps = con.prepareUncachedStatement(batch);
+					try {
+						ps.setQueryTimeout(readTimeout);
+						int index = 1;
+						if (!issueIDs.isEmpty()) {
+							if (changedSince != null) {
+								ps.setTimestamp(index++, changedSince);
+							}
+							index = InListStatement.bind(ps, index, issueIDs);
+						}
+						if (!epicIDs.isEmpty()) {
+							index = InListStatement.bind(ps, index, epicIDs);
+						}
+						if (readEpics) {
+							ps.setInt(index++, Integer.parseInt(projectID));
+						}
+						if (workLogEnd != null) {
+							ps.setInt(index++, Integer.parseInt(projectID));
+							if (workLogStart != null) {
+								ps.setTimestamp(index++, workLogStart);
+							}
+							ps.setTimestamp(index++, workLogEnd);
+						}
+					
+						// Read the result sets in the same order
+						ProjectRead read = new ProjectRead();
+						read.setIssues(new HashMap<String, Task>());
+						boolean isResultSet = ps.execute();
+						if (!issueIDs.isEmpty()) {
+							ResultSet rs = nextResultSet(ps, isResultSet);
+							Task task;
+							while ((task = processTask(rs)) != null) {
+								read.getIssues().put(task.getJiraIssueID(), task);
+							}
+							isResultSet = ps.getMoreResults();
+						}
+						if (!epicIDs.isEmpty()) {
+							for (Task epic : processEpics(nextResultSet(ps, isResultSet))) {
+								read.getIssues().put(epic.getJiraIssueID(), epic);
+							}
+							isResultSet = ps.getMoreResults();
+						}
+						if (readEpics) {
+							read.setEpics(processEpics(nextResultSet(ps, isResultSet)));
+							isResultSet = ps.getMoreResults();
+						}
+						if (workLogEnd != null) {
+							read.setWorkLog(processWorkLogEntries(nextResultSet(ps, isResultSet)));
+							ps.getMoreResults();
+						}
+						return read;
+					} finally {
+						ps.close();
+					}
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
 	}
 	
 	
-	public ArrayList<WorkLog> getWorkLog(String projectID, Timestamp endTime) throws JiraException {
-		if (workLogNoStartDateStatement == null) {
-			try { workLogNoStartDateStatement = con.prepareStatement(WORK_LOG_WITH_EPIC_NO_START_DATE_SQL); } 
-			catch (SQLException e) { throw new JiraException(e); }
+	/*
+	 * Returns the statement's current result set, skipping any update counts
+	 * in front of it.
+	 */
+	private static ResultSet nextResultSet(PreparedStatement ps, boolean isResultSet) throws SQLException {
+		while (!isResultSet) {
+			if (ps.getUpdateCount() == -1) {
+				throw new SQLException("The batch returned fewer result sets than expected");
+			}
+			isResultSet = ps.getMoreResults();
 		}
-
+		return ps.getResultSet();
+	}
+	
+	
+	public ArrayList<WorkLog> getWorkLog(final String projectID, final Timestamp startTime, final Timestamp endTime) throws JiraException {
 		try {
-			workLogNoStartDateStatement.setInt(1, Integer.parseInt(projectID));
-			workLogNoStartDateStatement.setTimestamp(2, endTime);
-			return processWorkLogEntries(workLogNoStartDateStatement.executeQuery());
+			return pool.execute(new ConnectionPool.Work<ArrayList<WorkLog>>() {
+				public ArrayList<WorkLog> run(PooledConnection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(WORK_LOG_WITH_EPIC_SQL);
+					ps.setFetchSize(WORK_LOG_FETCH_SIZE);
+					ps.setInt(1, Integer.parseInt(projectID));
+					ps.setTimestamp(2, startTime);
+					ps.setTimestamp(3, endTime);
+					return processWorkLogEntries(ps.executeQuery());
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
 	}
 	
 	
-	public boolean projectKeyExists(String key) throws JiraException {
-		if (validKeyStatement == null) {
-			try { validKeyStatement = con.prepareStatement(VALID_KEY_SQL); } 
-			catch (SQLException e) { throw new JiraException(e); }
+	/**
+	 * Returns when the first worklog entry in the project created in the given
+	 * time range was created, or null if there are none.
+	 */
+	public Timestamp getFirstWorkLogTime(final String projectID, final Timestamp startTime, final Timestamp endTime) throws JiraException {
+		try {
+			return pool.execute(new ConnectionPool.Work<Timestamp>() {
+				public Timestamp run(PooledConnection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(FIRST_WORK_LOG_SQL);
+					ps.setInt(1, Integer.parseInt(projectID));
+					ps.setTimestamp(2, startTime);
+					ps.setTimestamp(3, endTime);
+					ResultSet rs = ps.executeQuery();
+					Timestamp first = rs.next() ? rs.getTimestamp(Jira.CREATED) : null;
+					rs.close();
+					return first;
+				}
+			});
+		} catch (SQLException e) {
+			throw new JiraException(e);
 		}
-
+	}
+	
+	
+	/**
+	 * Returns the worklog entries created before endTime for all the given projects,
+	 * hashed by project ID. Each project only gets entries created at or after its
+	 * start time; a null start time means all of the project's entries.
+	 */
+	public Map<String, ArrayList<WorkLog>> getWorkLog(final Map<String, Timestamp> startTimes, final Timestamp endTime) throws JiraException {
+		final List<String> projectIDs = new ArrayList<String>(startTimes.keySet());
+		try {
+			return pool.execute(new ConnectionPool.Work<Map<String, ArrayList<WorkLog>>>() {
+				public Map<String, ArrayList<WorkLog>> run(PooledConnection con) throws SQLException {
+					Map<String, ArrayList<WorkLog>> worklog = new HashMap<String, ArrayList<WorkLog>>();
+					for (String projectID : projectIDs) {
+						worklog.put(projectID, new ArrayList<WorkLog>());
+					}
+					for (int start = 0; start < projectIDs.size(); start += PORTFOLIO_WORK_LOG_PROJECTS) {
+						List<String> chunk = projectIDs.subList(start, Math.min(start + PORTFOLIO_WORK_LOG_PROJECTS, projectIDs.size()));
+						
+						// Round the rows up to a power of two, like InListStatement, so only
+						// a few statements are prepared. The extra rows are NULL and match nothing.
+						int rows = 1;
+						while (rows < chunk.size()) {
+							rows <<= 1;
+						}
+						StringBuilder values = new StringBuilder("(?, ?)");
+						for (int i = 1; i < rows; i++) {
+							values.append(", (?, ?)");
+						}
+						
+						PreparedStatement ps = con.prepareStatement(PORTFOLIO_WORK_LOG_SQL.replace(PROJECT_START_TIMES, values.toString()));
+						int index = 1;
+						for (int i = 0; i < rows; i++) {
+							if (i < chunk.size()) {
+								ps.setString(index++, chunk.get(i));
+								ps.setTimestamp(index++, startTimes.get(chunk.get(i)));
+							} else {
+								ps.setNull(index++, java.sql.Types.VARCHAR);
+								ps.setNull(index++, java.sql.Types.TIMESTAMP);
+							}
+						}
+						ps.setTimestamp(index, endTime);
+						
+						ResultSet rs = ps.executeQuery();
+						while (rs.next()) {
+							worklog.get(Integer.toString(rs.getInt(Jira.SQL_PROJECT_ID))).add(createWorkLog(rs));
+						}
+						rs.close();
+					}
+					return worklog;
+				}
+			});
+		} catch (SQLException e) {
+			throw new JiraException(e);
+		}
+	}
+	
+	
+	public ArrayList<WorkLog> getWorkLog(final String projectID, final Timestamp endTime) throws JiraException {
 		try {
-			validKeyStatement.setString(1, key);
-			validKeyStatement.setString(2, key);
-			ResultSet rs = validKeyStatement.executeQuery();
-			boolean retval = rs.next();
-			rs.close();
-			return retval; 
+			return pool.execute(new ConnectionPool.Work<ArrayList<WorkLog>>() {
+				public ArrayList<WorkLog> run(PooledConnection con) throws SQLException {
+					PreparedStatement ps = con.prepareStatement(WORK_LOG_WITH_EPIC_NO_START_DATE_SQL);
+					ps.setInt(1, Integer.parseInt(projectID));
+					ps.setTimestamp(2, endTime);
+					return processWorkLogEntries(ps.executeQuery());
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
 	}
 	
 	
+	/**
+	 * Returns true if the key is the key, or the original key, of a Jira project.
+	 * Like SQL Server, the comparison ignores case.
+	 */
+	public boolean projectKeyExists(String key) throws JiraException {
+		return getProjectNamespace().keys.contains(key);
+	}
+	
+	
+	/**
+	 * Returns the project keys and original keys that start with the given
+	 * prefix, ignoring case, in order.
+	 */
+	public SortedSet<String> getProjectKeysStartingWith(String prefix) throws JiraException {
+		// The keys that start with the prefix all sort together, right after the prefix
+		TreeSet<String> matches = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		for (String key : getProjectNamespace().keys.tailSet(prefix, true)) {
+			if (!key.regionMatches(true, 0, prefix, 0, prefix.length())) {
+				break;
+			}
+			matches.add(key);
+		}
+		return matches;
+	}
+	
+	
+	/**
+	 * Returns true if a Jira project has the given name, ignoring case.
+	 */
 	public boolean projectNameExists(String projectName) throws JiraException {
-		if (validProjectNameStatement == null) {
-			try { validProjectNameStatement = con.prepareStatement(VALID_PROJECT_NAME_SQL); } 
-			catch (SQLException e) { throw new JiraException(e); }
+		return getProjectNamespace().names.contains(projectName);
+	}
+	
+	
+	/**
+	 * Records a project that was just created, so its key and name aren't
+	 * handed out again before the project keys and names are next reloaded.
+	 */
+	public synchronized void addProject(String key, String projectName) {
+		if (projectNamespace != null) {
+			ProjectNamespace namespace = new ProjectNamespace(projectNamespace);
+			namespace.keys.add(key);
+			namespace.names.add(projectName);
+			projectNamespace = namespace;
 		}
-
+	}
+	
+	
+	/**
+	 * Forgets the project keys and names so they are reloaded the next time
+	 * they are needed, e.g. after Jira refused a key we thought was free.
+	 */
+	public synchronized void resetProjectNamespace() {
+		projectNamespace = null;
+	}
+	
+	
+	/*
+	 * Returns the keys and names of all the Jira projects, loading them if they
+	 * haven't been loaded or have expired. The sets are never changed once they
+	 * are handed out; addProject() replaces them instead.
+	 */
+	private synchronized ProjectNamespace getProjectNamespace() throws JiraException {
+		if (projectNamespace != null && System.currentTimeMillis() - projectNamespace.loaded < projectCacheTTL) {
+			return projectNamespace;
+		}
+		
 		try {
-			validProjectNameStatement.setString(1, projectName);
-			ResultSet rs = validProjectNameStatement.executeQuery();
-			boolean retval = rs.next();
-			rs.close();
-			return retval; 
+			projectNamespace = pool.execute(new ConnectionPool.Work<ProjectNamespace>() {
+				public ProjectNamespace run(PooledConnection con) throws SQLException {
+					ProjectNamespace namespace = new ProjectNamespace();
+					ResultSet rs = con.createStatement().executeQuery(PROJECT_NAMESPACE_SQL);
+					while (rs.next()) {
+						namespace.keys.add(rs.getString(Jira.PKEY));
+						if (rs.getString(Jira.ORIGINAL_KEY) != null) {
+							namespace.keys.add(rs.getString(Jira.ORIGINAL_KEY));
+						}
+						namespace.names.add(rs.getString(Jira.PNAME));
+					}
+					rs.close();
+					return namespace;
+				}
+			});
 		} catch (SQLException e) {
 			throw new JiraException(e);
 		}
+		return projectNamespace;
+	}
+	
+	
+	// The keys and names of all the Jira projects
+	private static class ProjectNamespace {
+		TreeSet<String> keys = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		TreeSet<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		long loaded;
+		
+		ProjectNamespace() {
+			loaded = System.currentTimeMillis();
+		}
+		
+		ProjectNamespace(ProjectNamespace other) {
+			keys.addAll(other.keys);
+			names.addAll(other.names);
+			loaded = other.loaded;
+		}
 	}
 	
 	
 	public void close() {
-		if (backlogItemsStatement != null) try { backlogItemsStatement.close(); } catch(Exception e) {}
-		if (con != null) try { con.close(); } catch(Exception e) {}		
+		pool.close();
 	}
 
 	private ArrayList<Task> processEpics(ResultSet rs) throws SQLException {
 		ArrayList<Task> tasks = new ArrayList<Task>();
 		
 		while (rs.next()) {
-			Task task = new Task();
+			tasks.add(createEpic(rs));
+		}
+		
+		return tasks;
+	}
+	
+	
+	private Task createEpic(ResultSet rs) throws SQLException {
+		Task task = new Task();
 
-			task.setName(rs.getString(Jira.EPIC_NAME));
-			task.setJiraIssueID(Integer.toString(rs.getInt(Jira.EPIC_ID)));
-			task.setJiraIssueKey(rs.getString(Jira.ISSUE_KEY));
-			task.setJiraIssueType(rs.getString(Jira.ISSUE_TYPE));
+		task.setName(rs.getString(Jira.EPIC_NAME));
+		task.setJiraIssueID(Integer.toString(rs.getInt(Jira.EPIC_ID)));
+		task.setJiraIssueKey(rs.getString(Jira.ISSUE_KEY));
+		task.setJiraIssueType(rs.getString(Jira.ISSUE_TYPE));
 
-			/*
-			 Algorithm for calculating duration and percent complete:
-			 - Assumption: all the results are epics
-			 - Assumption: values in the result are a summary of all stories and subtasks in the epic
-			 
-			 If the completed story points is zero use the original estimate of the epic as the duration
-			 Otherwise calculate a velocity using time spent on completed stories and story points completed (i.e., time_spent / points_completed)
-			 and apply that velocity to the remaining points to calculate the duration (i.e., velocity * remaining points + time_spent)
-			 
-			 If the status of the epic is "Done", then set the percent complete to 100%
-			 Otherwise, calculate the percent complete as completed_story_points / total_story_points
-			 */
-			Double epicEstimate = rs.getDouble(Jira.EPIC_ESTIMATE);
-			if (rs.wasNull()) epicEstimate = 0.0;
-			Double totalStoryPoints = rs.getDouble(Jira.TOTAL_STORY_POINTS);
-			if (rs.wasNull()) totalStoryPoints = 0.0;
-			Double timeSpentClosedStories = rs.getDouble(Jira.TOTAL_TIME_SPENT_CLOSED);
-			if (rs.wasNull()) timeSpentClosedStories = 0.0;
-			Double storyPointsClosedStories = rs.getDouble(Jira.TOTAL_STORY_POINTS_CLOSED);
-			if (rs.wasNull()) storyPointsClosedStories = 0.0;
-			Double subtasksTimeSpentClosedStories = rs.getDouble(Jira.TOTAL_SUBTASKS_TIME_SPENT_CLOSED);
-			if (rs.wasNull()) subtasksTimeSpentClosedStories = 0.0;
-			
-			Double duration;
-			Double percentComplete;
-			if (storyPointsClosedStories <= 0) {
-				duration = epicEstimate;
-				percentComplete = 0.0;
-			}
-			else {
-				Double velocity = timeSpentClosedStories / storyPointsClosedStories;
-				duration = velocity * (totalStoryPoints - storyPointsClosedStories) + timeSpentClosedStories + subtasksTimeSpentClosedStories;
-				percentComplete = 100 * storyPointsClosedStories / totalStoryPoints;
-				
-				// Round the duration and percent complete to the nearest whole number
-				duration = (double)Math.round(duration);
-				percentComplete = (double)Math.round(percentComplete);
-			}
-			
-			if (rs.getString(Jira.EPIC_STATUS).equals(Jira.EPIC_STATUS_DONE)) {
-				percentComplete = 100.0;
-			}
-			
-			task.setDuration(duration);
-			task.setPercentComplete(percentComplete);
+		/*
+		 Algorithm for calculating duration and percent complete:
+		 - Assumption: all the results are epics
+		 - Assumption: values in the result are a summary of all stories and subtasks in the epic
+		 
+		 If the completed story points is zero use the original estimate of the epic as the duration
+		 Otherwise calculate a velocity using time spent on completed stories and story points completed (i.e., time_spent / points_completed)
+		 and apply that velocity to the remaining points to calculate the duration (i.e., velocity * remaining points + time_spent)
+		 
+		 If the status of the epic is "Done", then set the percent complete to 100%
+		 Otherwise, calculate the percent complete as completed_story_points / total_story_points
+		 */
+		Double epicEstimate = rs.getDouble(Jira.EPIC_ESTIMATE);
+		if (rs.wasNull()) epicEstimate = 0.0;
+		Double totalStoryPoints = rs.getDouble(Jira.TOTAL_STORY_POINTS);
+		if (rs.wasNull()) totalStoryPoints = 0.0;
+		Double timeSpentClosedStories = rs.getDouble(Jira.TOTAL_TIME_SPENT_CLOSED);
+		if (rs.wasNull()) timeSpentClosedStories = 0.0;
+		Double storyPointsClosedStories = rs.getDouble(Jira.TOTAL_STORY_POINTS_CLOSED);
+		if (rs.wasNull()) storyPointsClosedStories = 0.0;
+		Double subtasksTimeSpentClosedStories = rs.getDouble(Jira.TOTAL_SUBTASKS_TIME_SPENT_CLOSED);
+		if (rs.wasNull()) subtasksTimeSpentClosedStories = 0.0;
+		
+		Double duration;
+		Double percentComplete;
+		if (storyPointsClosedStories <= 0) {
+			duration = epicEstimate;
+			percentComplete = 0.0;
+		}
+		else {
+			Double velocity = timeSpentClosedStories / storyPointsClosedStories;
+			duration = velocity * (totalStoryPoints - storyPointsClosedStories) + timeSpentClosedStories + subtasksTimeSpentClosedStories;
+			percentComplete = 100 * storyPointsClosedStories / totalStoryPoints;
 			
-			tasks.add(task);
+			// Round the duration and percent complete to the nearest whole number
+			duration = (double)Math.round(duration);
+			percentComplete = (double)Math.round(percentComplete);
 		}
 		
-		return tasks;
+		if (rs.getString(Jira.EPIC_STATUS).equals(Jira.EPIC_STATUS_DONE)) {
+			percentComplete = 100.0;
+		}
+		
+		task.setDuration(duration);
+		task.setPercentComplete(percentComplete);
+		
+		return task;
 	}
 
 	
-	private Task processTask(ResultSet rs)	throws SQLException, JiraIssueNotFoundException {
+	private Task processTask(ResultSet rs)	throws SQLException {
 		Task task = null;
 		if (rs.next()) {
 			task = new Task();
@@ -338,17 +825,22 @@ public class JiraSQLClient {
 		ArrayList<WorkLog> worklog = new ArrayList<WorkLog>();
 		
 		while (rs.next()) {
-			WorkLog wl = new WorkLog();
-			wl.setDateWorked(rs.getTimestamp(Jira.DATE_WORKED));
-			wl.setDescription(rs.getString(Jira.DESCRIPTION));
-			wl.setHoursWorked(rs.getDouble(Jira.HOURS_WORKED));
-			wl.setJiraIssuenum(rs.getString(Jira.ISSUENUM));
-			wl.setJiraWorker(rs.getString(Jira.WORKER));
-			wl.setEpicIssuenum(rs.getString(Jira.EPIC_ID));
-			wl.setJiraIssueKey(rs.getString(Jira.ISSUE_KEY));
-			worklog.add(wl);
+			worklog.add(createWorkLog(rs));
 		}
 		
 		return worklog;
 	}
+	
+	
+	private WorkLog createWorkLog(ResultSet rs) throws SQLException {
+		WorkLog wl = new WorkLog();
+		wl.setDateWorked(rs.getTimestamp(Jira.DATE_WORKED));
+		wl.setDescription(rs.getString(Jira.DESCRIPTION));
+		wl.setHoursWorked(rs.getDouble(Jira.HOURS_WORKED));
+		wl.setJiraIssuenum(rs.getString(Jira.ISSUENUM));
+		wl.setJiraWorker(rs.getString(Jira.WORKER));
+		wl.setEpicIssuenum(rs.getString(Jira.EPIC_ID));
+		wl.setJiraIssueKey(rs.getString(Jira.ISSUE_KEY));
+		return wl;
+	}
 }
@@ -0,0 +1,45 @@
+package com.spillman.jira;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import com.spillman.common.Task;
+import com.spillman.common.WorkLog;
+
+/**
+ * Everything read from Jira for one project in a single round trip. The
+ * epics and worklog are null if they weren't asked for.
+ */
+public class ProjectRead {
+	private Map<String, Task> issues;
+	private ArrayList<Task> epics;
+	private ArrayList<WorkLog> workLog;
+
+	/**
+	 * Returns the synced issues and epics. JiraSQLClient hashes them by Jira
+	 * issue ID; JiraClient hashes them by Workfront task ID.
+	 */
+	public Map<String, Task> getIssues() {
+		return issues;
+	}
+
+	public void setIssues(Map<String, Task> issues) {
+		this.issues = issues;
+	}
+
+	public ArrayList<Task> getEpics() {
+		return epics;
+	}
+
+	public void setEpics(ArrayList<Task> epics) {
+		this.epics = epics;
+	}
+
+	public ArrayList<WorkLog> getWorkLog() {
+		return workLog;
+	}
+
+	public void setWorkLog(ArrayList<WorkLog> workLog) {
+		this.workLog = workLog;
+	}
+}
@@ -0,0 +1,200 @@
+package com.spillman.sql;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A fixed size pool of JDBC connections to one database.
+ *
+ * Work is handed to execute(), which borrows a connection, runs the work on it
+ * and gives it back. Up to size pieces of work run at the same time; the rest
+ * wait for a connection. A connection is checked with isValid() before it is
+ * handed out, and connections that have been idle longer than maxIdleTime or
+ * open longer than maxLifetime are closed rather than reused.
+ *
+ * If the work fails because the connection was lost, the connection is thrown
+ * away and the work is run once more on a new one, so a dropped connection
+ * doesn't end the sync. The work must be safe to run twice.
+ */
+public class ConnectionPool {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Something to do with a connection from the pool.
+	 */
+	public interface Work<T> {
+		T run(PooledConnection con) throws SQLException;
+	}
+
+	private String connectionString;
+	private long maxIdleTime;
+	private long maxLifetime;
+	private int validationTimeout;
+	private Semaphore permits;
+
+	// Most recently used first, so the connections that sit idle are at the end
+	private Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param size the most connections open at once
+	 * @param maxIdleTime milliseconds a connection can sit unused before it's closed
+	 * @param maxLifetime milliseconds a connection is used for before it's closed
+	 * @param validationTimeout seconds to wait for a connection to answer isValid()
+	 */
+	public ConnectionPool(String connectionString, int size, long maxIdleTime, long maxLifetime, int validationTimeout) {
+		this.connectionString = connectionString;
+		this.maxIdleTime = maxIdleTime;
+		this.maxLifetime = maxLifetime;
+		this.validationTimeout = validationTimeout;
+		this.permits = new Semaphore(Math.max(1, size), true);
+	}
+
+	/**
+	 * Runs the work on a connection from the pool and returns its result. If
+	 * the connection is lost while the work is running, it is run again on a
+	 * new connection.
+	 */
+	public <T> T execute(Work<T> work) throws SQLException {
+		try {
+			return attempt(work);
+		} catch (SQLException e) {
+			if (!isConnectionError(e) || closed) {
+				throw e;
+			}
+			logger.warn("Lost the database connection, retrying with a new connection: {}", e.getMessage());
+			return attempt(work);
+		}
+	}
+
+	/**
+	 * Closes the idle connections. Connections that are in use are closed
+	 * when they are given back.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (idle) {
+			for (PooledConnection con : idle) {
+				con.close();
+			}
+			idle.clear();
+		}
+	}
+
+	private <T> T attempt(Work<T> work) throws SQLException {
+		PooledConnection con = borrow();
+		boolean broken = false;
+		try {
+			return work.run(con);
+		} catch (SQLException e) {
+			broken = isConnectionError(e);
+			throw e;
+		} finally {
+			release(con, broken);
+		}
+	}
+
+	private PooledConnection borrow() throws SQLException {
+		if (closed) {
+			throw new SQLException("The connection pool is closed");
+		}
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a database connection", e);
+		}
+
+		boolean borrowed = false;
+		try {
+			PooledConnection con;
+			while ((con = takeIdle()) != null) {
+				if (isUsable(con)) {
+					borrowed = true;
+					return con;
+				}
+				logger.debug("Closing a stale database connection");
+				con.close();
+			}
+
+			con = new PooledConnection(DriverManager.getConnection(connectionString));
+			borrowed = true;
+			return con;
+		} finally {
+			if (!borrowed) {
+				permits.release();
+			}
+		}
+	}
+
+	private void release(PooledConnection con, boolean broken) {
+		long now = System.currentTimeMillis();
+		con.setLastUsed(now);
+		if (broken || closed || now - con.getCreated() >= maxLifetime) {
+			con.close();
+		} else {
+			synchronized (idle) {
+				idle.addFirst(con);
+			}
+		}
+		permits.release();
+		evictIdle(now);
+	}
+
+	private PooledConnection takeIdle() {
+		synchronized (idle) {
+			return idle.pollFirst();
+		}
+	}
+
+	private boolean isUsable(PooledConnection con) {
+		long now = System.currentTimeMillis();
+		if (now - con.getLastUsed() >= maxIdleTime || now - con.getCreated() >= maxLifetime) {
+			return false;
+		}
+		try {
+			return con.isValid(validationTimeout);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	// Closes the connections at the end of the idle list that haven't been used for too long
+	private void evictIdle(long now) {
+		synchronized (idle) {
+			Iterator<PooledConnection> it = idle.descendingIterator();
+			while (it.hasNext()) {
+				PooledConnection con = it.next();
+				if (now - con.getLastUsed() < maxIdleTime) {
+					break;
+				}
+				it.remove();
+				logger.debug("Closing an idle database connection");
+				con.close();
+			}
+		}
+	}
+
+	/*
+	 * SQL state class 08 is a connection exception. The SQL Server driver
+	 * uses 08S01 when the connection is dropped.
+	 */
+	private static boolean isConnectionError(SQLException e) {
+		if (e instanceof SQLNonTransientConnectionException
+				|| e instanceof SQLTransientConnectionException
+				|| e instanceof SQLRecoverableException) {
+			return true;
+		}
+		return e.getSQLState() != null && e.getSQLState().startsWith("08");
+	}
+}
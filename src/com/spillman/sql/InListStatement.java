@@ -0,0 +1,130 @@
+package com.spillman.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A prepared statement with an IN list that can take any number of values.
+ * 
+ * The SQL is written with VALUES where the list goes, e.g.
+ * "SELECT ... WHERE ID IN " + InListStatement.VALUES. Rather than preparing a
+ * new statement for every list size, the list is rounded up to the next power
+ * of two and the unused slots are set to NULL, so only a handful of statements
+ * are ever prepared. Lists longer than MAX_VALUES are split into chunks to
+ * stay under SQL Server's limit of 2100 parameters per statement.
+ * 
+ * Not thread safe. Each PooledConnection keeps its own, see
+ * PooledConnection.prepareInListStatement().
+ */
+public class InListStatement {
+	public static final String VALUES = "(?*)";
+	public static final int MAX_VALUES = 2048;
+
+	private Connection con;
+	private String sql;
+	private int fixedParameters;
+	private Map<Integer, PreparedStatement> statements = new HashMap<Integer, PreparedStatement>();
+
+	/**
+	 * @param fixedParameters the number of parameters in the SQL before the IN list
+	 */
+	public InListStatement(Connection con, String sql, int fixedParameters) {
+		if (!sql.contains(VALUES)) {
+			throw new IllegalArgumentException("The SQL doesn't contain " + VALUES);
+		}
+		this.con = con;
+		this.sql = sql;
+		this.fixedParameters = fixedParameters;
+	}
+	
+	public InListStatement(Connection con, String sql) {
+		this(con, sql, 0);
+	}
+
+	/**
+	 * Returns the statement for a list of the given values, with the values bound.
+	 * Any parameters before the IN list must be set by the caller. The list must
+	 * not be longer than MAX_VALUES; use chunks() to split it first.
+	 */
+	public PreparedStatement prepare(List<String> values) throws SQLException {
+		if (values.size() > MAX_VALUES) {
+			throw new IllegalArgumentException("Too many values for one statement: " + values.size());
+		}
+		
+		int bucket = bucketSize(values.size());
+		PreparedStatement statement = statements.get(bucket);
+		if (statement == null) {
+			statement = con.prepareStatement(expand(sql, values.size()));
+			statements.put(bucket, statement);
+		}
+		
+		bind(statement, fixedParameters + 1, values);
+		return statement;
+	}
+	
+	/**
+	 * Replaces VALUES in the SQL with the placeholders for a list of count values,
+	 * rounded up the same way as prepare(). For SQL that has more than one IN list
+	 * or more than one statement, where prepare() can't be used.
+	 */
+	public static String expand(String sql, int count) {
+		return sql.replace(VALUES, placeholders(bucketSize(count)));
+	}
+	
+	/**
+	 * Binds the values to the placeholders that expand() made for them, starting
+	 * at the given parameter index. Returns the index of the next parameter.
+	 */
+	public static int bind(PreparedStatement statement, int index, List<String> values) throws SQLException {
+		int bucket = bucketSize(values.size());
+		int i = 0;
+		while (i < values.size()) {
+			statement.setString(index + i, values.get(i));
+			i++;
+		}
+		while (i < bucket) {
+			statement.setNull(index + i, java.sql.Types.VARCHAR);
+			i++;
+		}
+		return index + bucket;
+	}
+	
+	public void close() throws SQLException {
+		for (PreparedStatement statement : statements.values()) {
+			statement.close();
+		}
+		statements.clear();
+	}
+
+	/**
+	 * Splits a list of values into lists no longer than MAX_VALUES.
+	 */
+	public static <T> List<List<T>> chunks(List<T> values) {
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		for (int i = 0; i < values.size(); i += MAX_VALUES) {
+			chunks.add(values.subList(i, Math.min(values.size(), i + MAX_VALUES)));
+		}
+		return chunks;
+	}
+	
+	static int bucketSize(int count) {
+		int bucket = 1;
+		while (bucket < count) {
+			bucket <<= 1;
+		}
+		return Math.min(bucket, MAX_VALUES);
+	}
+	
+	private static String placeholders(int count) {
+		StringBuilder sb = new StringBuilder("(?");
+		for (int i = 1; i < count; i++) {
+			sb.append(",?");
+		}
+		return sb.append(")").toString();
+	}
+}
@@ -0,0 +1,96 @@
+package com.spillman.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection borrowed from a ConnectionPool. It keeps the statements that
+ * have been prepared on it, so each SQL string is only prepared once per
+ * connection. Only one thread uses a connection at a time, so the statements
+ * don't need to be synchronized.
+ */
+public class PooledConnection {
+	private Connection con;
+	private long created;
+	private long lastUsed;
+	private Statement statement = null;
+	private Map<String, PreparedStatement> preparedStatements = new HashMap<String, PreparedStatement>();
+	private Map<String, InListStatement> inListStatements = new HashMap<String, InListStatement>();
+
+	PooledConnection(Connection con) {
+		this.con = con;
+		this.created = System.currentTimeMillis();
+		this.lastUsed = created;
+	}
+
+	public Statement createStatement() throws SQLException {
+		if (statement == null) {
+			statement = con.createStatement();
+		}
+		return statement;
+	}
+
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		PreparedStatement ps = preparedStatements.get(sql);
+		if (ps == null) {
+			ps = con.prepareStatement(sql);
+			preparedStatements.put(sql, ps);
+		}
+		return ps;
+	}
+
+	/**
+	 * Prepares a statement that isn't kept with the connection, for SQL that is
+	 * built on the fly and rarely repeated. The caller must close it.
+	 */
+	public PreparedStatement prepareUncachedStatement(String sql) throws SQLException {
+		return con.prepareStatement(sql);
+	}
+
+	public InListStatement prepareInListStatement(String sql) {
+		return prepareInListStatement(sql, 0);
+	}
+
+	/**
+	 * @param fixedParameters the number of parameters in the SQL before the IN list
+	 */
+	public InListStatement prepareInListStatement(String sql, int fixedParameters) {
+		InListStatement ps = inListStatements.get(sql);
+		if (ps == null) {
+			ps = new InListStatement(con, sql, fixedParameters);
+			inListStatements.put(sql, ps);
+		}
+		return ps;
+	}
+
+	boolean isValid(int timeout) throws SQLException {
+		return con.isValid(timeout);
+	}
+
+	long getCreated() {
+		return created;
+	}
+
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	void setLastUsed(long lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+
+	void close() {
+		if (statement != null) try { statement.close(); } catch (Exception e) {}
+		for (PreparedStatement ps : preparedStatements.values()) {
+			try { ps.close(); } catch (Exception e) {}
+		}
+		for (InListStatement ps : inListStatements.values()) {
+			try { ps.close(); } catch (Exception e) {}
+		}
+		try { con.close(); } catch (Exception e) {}
+	}
+}
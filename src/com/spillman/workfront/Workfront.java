@@ -87,9 +87,13 @@ public class Workfront {
 	public static final String JIRA_SYNC_TASK_MOD		= "DE:Sync Task To Jira_Mod";
 	public static final String LAST_UPDATE_DATE_MOD		= "lastUpdateDate_Mod";
 	public static final String LAST_UPDATE_DATE_RANGE	= "lastUpdateDate_Range";
+	public static final String LEAD_OPPORTUNITY_ID_MOD	= "DE:Lead Opportunity ID_Mod";
 	public static final String MOD_BETWEEN				= "between";
+	public static final String MOD_IN					= "in";
 	public static final String MOD_NOT_NULL				= "notnull";
 	public static final String MOD_NOT_EQUAL_TO			= "ne";
+	public static final String OPPORTUNITIES_MOD		= "DE:Opportunities_Mod";
+	public static final String PROJECT_ID_MOD			= "projectID_Mod";
 	public static final String STATUS_MOD				= "status_Mod";
 	public static final String SYNC_WITH_JIRA_MOD		= "DE:Sync With Jira_Mod";
 	
@@ -116,6 +120,15 @@ public class Workfront {
 	public static final String YES						= "Yes";
 	
 	// Workfront Date Formatters
-	public static final DateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-	public static final DateFormat dateFormatterTZ = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss:SSSZ");
+	// SimpleDateFormat isn't thread safe, so each sync thread gets its own copy
+	public static final ThreadLocal<DateFormat> dateFormatter = new ThreadLocal<DateFormat>() {
+		protected DateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		}
+	};
+	public static final ThreadLocal<DateFormat> dateFormatterTZ = new ThreadLocal<DateFormat>() {
+		protected DateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss:SSSZ");
+		}
+	};
 }
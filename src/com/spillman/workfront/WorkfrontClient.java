@@ -1,9 +1,15 @@
 package com.spillman.workfront;
 
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -19,6 +25,8 @@ import com.spillman.common.Project;
 import com.spillman.common.Request;
 import com.spillman.common.Task;
 import com.spillman.common.WorkLog;
+import com.spillman.workfront.api.BatchOperation;
+import com.spillman.workfront.api.SearchCursor;
 import com.spillman.workfront.api.StreamClient;
 import com.spillman.workfront.api.StreamClientException;
 
@@ -79,9 +87,13 @@ public class WorkfrontClient {
 		Workfront.PILOT_AGENCY,
 		Workfront.JIRA_SYNC_TASK,
 		Workfront.LAST_UPDATE_DATE,
-		Workfront.PARENT_ID
+		Workfront.PARENT_ID,
+		Workfront.PROJECT_ID
 	};
 	
+	// The number of projects whose tasks are fetched in one search
+	private final static int TASK_SEARCH_PROJECTS = 100;
+	
 	private StreamClient client = null;
 	
 	private String portfolioID 				= null;
@@ -94,6 +106,54 @@ public class WorkfrontClient {
 	private String pilotAgencyFieldID		= null;
 	private String newRequestProjectID		= null;
 	private HashMap<String, String> users	= null;
+	private boolean prefetchPages			= false;
+	private int batchSize					= 0;
+	private int bulkUpdateSize				= 0;
+	private boolean atomicBatches			= false;
+	
+	// The projects and requests that reference each opportunity, hashed by upper case
+	// opportunity GUID, and the opportunities each project or request references,
+	// hashed by "objcode:ID". Used to decide whether a closed opportunity can be
+	// deleted from the list or has to be hidden, without searching Workfront.
+	private Map<String, Set<String>> opportunityReferences = new HashMap<String, Set<String>>();
+	private Map<String, Set<String>> referencedOpportunities = new HashMap<String, Set<String>>();
+	
+	// A copy of the parameter options (popt) for the Account Name, Opportunities and
+	// Pilot Agency parameters, hashed by parameter ID and then by option value. Loaded
+	// at login and kept up to date as we add, hide and delete options.
+	private Map<String, Map<String, ParameterOption>> parameterOptions = new HashMap<String, Map<String, ParameterOption>>();
+	
+	private static class ParameterOption {
+		String id; // null until Workfront tells us the ID of an option we added
+		boolean hidden;
+		
+		ParameterOption(String id, boolean hidden) {
+			this.id = id;
+			this.hidden = hidden;
+		}
+	}
+	
+	// Each sync thread queues and flushes its own writes. A project's writes
+	// are flushed or discarded before its sync ends, so its failures are never
+	// reported against the next project synced on the same thread.
+	private ThreadLocal<List<PendingWrite>> pendingWrites = new ThreadLocal<List<PendingWrite>>() {
+		protected List<PendingWrite> initialValue() {
+			return new ArrayList<PendingWrite>();
+		}
+	};
+	
+	// A write that has been queued to be sent to Workfront in a batch
+	private static class PendingWrite {
+		BatchOperation operation;
+		String description;
+		boolean duplicateAllowed;
+		
+		PendingWrite(BatchOperation operation, String description, boolean duplicateAllowed) {
+			this.operation = operation;
+			this.description = description;
+			this.duplicateAllowed = duplicateAllowed;
+		}
+	}
 
 	public WorkfrontClient(SyncProperties props) throws WorkfrontException {
 			
@@ -119,10 +179,16 @@ public class WorkfrontClient {
 			throw new WorkfrontException("Workfront New Project Request Project ID parameter cannot be null");
 		}
 		
-		this.client = new StreamClient(url);
+		this.client = new StreamClient(url, props.getWorkfrontMaxConnections(), props.getWorkfrontKeepAliveSeconds(),
+				props.getWorkfrontTlsSessionTimeoutSeconds());
+		this.client.setMaxInFlight(props.getWorkfrontMaxInFlight());
 		this.portfolioName = portfolio;
 		this.jiraTaskCustomFormName = jiraTask;
 		this.newRequestProjectID = newRequestProjectID;
+		this.prefetchPages = props.getWorkfrontPrefetchPages();
+		this.batchSize = props.getWorkfrontBatchSize();
+		this.bulkUpdateSize = props.getWorkfrontBulkUpdateSize();
+		this.atomicBatches = props.getWorkfrontAtomicBatches();
 		
 		logger.exit();
 	}
@@ -145,6 +211,10 @@ public class WorkfrontClient {
 //			leadOpportunityFieldID = getObjectIdByName(Workfront.OBJCODE_PARAM, Workfront.PARAM_LEAD_OPPORTUNITY);
 			pilotAgencyFieldID = getObjectIdByName(Workfront.OBJCODE_PARAM, Workfront.PARAM_PILOT_AGENCY);
 			opportunitiesFieldID = getObjectIdByName(Workfront.OBJCODE_PARAM, Workfront.PARAM_OPPORTUNITIES);
+			loadParameterOptions(accountNameFieldID);
+			loadParameterOptions(opportunitiesFieldID);
+			loadParameterOptions(pilotAgencyFieldID);
+			loadOpportunityReferences();
 		} catch (JSONException e) {
 			throw new WorkfrontException(e);
 		} catch (StreamClientException e) {
@@ -186,17 +256,10 @@ public class WorkfrontClient {
 		logger.entry();
 
 		HashMap<String,String> accounts = new HashMap<String,String>();
-		String[] fields = new String[] {Workfront.ID, Workfront.VALUE, Workfront.LABEL};
-
-		try {
-			JSONArray results = getObjects(Workfront.OBJCODE_POPT, Workfront.PARAMETER_ID, pilotAgencyFieldID, fields);
-			for (int i = 0; i < results.length(); i++) {
-				JSONObject account = (JSONObject)results.get(i);
-				String code = account.getString(Workfront.VALUE);
+		synchronized (this) {
+			for (String code : parameterOptions.get(pilotAgencyFieldID).keySet()) {
 				accounts.put(code, code);
 			}
-		} catch (StreamClientException | JSONException e) {
-			throw new WorkfrontException(e);
 		}
 		
 		return logger.exit(accounts);
@@ -231,26 +294,104 @@ public class WorkfrontClient {
 	}
 	
 	private void addParameterOption(String id, String value, String label) throws WorkfrontException {
+		synchronized (this) {
+			Map<String, ParameterOption> options = parameterOptions.get(id);
+			if (options.containsKey(value)) {
+				logger.debug("Parameter option {}:{} already exists", label, value);
+				return;
+			}
+			options.put(value, new ParameterOption(null, false));
+		}
+		
 		Map<String, Object> map = new HashMap<String, Object>();
 		map.put(Workfront.PARAMETER_ID, id);
 		map.put(Workfront.VALUE, value);
 		map.put(Workfront.LABEL, label);
 		
+		if (isBatching()) {
+			queueWrite(BatchOperation.post(Workfront.OBJCODE_POPT, map), "parameter option " + label + ":" + value, true);
+			return;
+		}
+		
 		try {
-			client.post(Workfront.OBJCODE_POPT, map);
+			JSONObject result = client.post(Workfront.OBJCODE_POPT, map);
+			parameterOptionAdded(id, value, result);
 		} catch (StreamClientException e) {
 			if (e.getMessageKey() != null && e.getMessageKey().equals(Workfront.UNIQUE_KEY_VIOLATION)) {
 				logger.warn("Parameter option {}:{} already exists", label, value);
 			}
 			else {
+				parameterOptionFailed(id, value);
 				throw new WorkfrontException(e);
 			}
 		}
 	}
+	
+	/*
+	 * Loads the options for a parameter into the local copy.
+	 */
+	private void loadParameterOptions(String parameterID) throws StreamClientException, JSONException {
+		logger.entry(parameterID);
+		
+		Map<String, ParameterOption> options = new HashMap<String, ParameterOption>();
+		String[] fields = new String[] {Workfront.ID, Workfront.VALUE, Workfront.IS_HIDDEN};
+		SearchCursor results = getObjects(Workfront.OBJCODE_POPT, Workfront.PARAMETER_ID, parameterID, fields);
+		while (results.hasNext()) {
+			JSONObject option = results.next();
+			options.put(option.getString(Workfront.VALUE), new ParameterOption(option.getString(Workfront.ID),
+					option.optBoolean(Workfront.IS_HIDDEN)));
+		}
+		
+		synchronized (this) {
+			parameterOptions.put(parameterID, options);
+		}
+		logger.debug("Loaded {} options for parameter {}", options.size(), parameterID);
+		logger.exit();
+	}
+	
+	private synchronized void parameterOptionAdded(String parameterID, String value, JSONObject result) {
+		ParameterOption option = parameterOptions.get(parameterID).get(value);
+		if (option != null && result != null) {
+			option.id = result.optString(Workfront.ID, null);
+		}
+	}
+	
+	private synchronized void parameterOptionFailed(String parameterID, String value) {
+		ParameterOption option = parameterOptions.get(parameterID).get(value);
+		if (option != null && option.id == null) {
+			parameterOptions.get(parameterID).remove(value);
+		}
+	}
+	
+	/*
+	 * Returns the ID of an option of the given parameter. Falls back to searching
+	 * Workfront if we haven't been told the ID of an option we added.
+	 */
+	private String getParameterOptionID(String parameterID, String value) throws StreamClientException, JSONException {
+		synchronized (this) {
+			ParameterOption option = parameterOptions.get(parameterID).get(value);
+			if (option != null && option.id != null) {
+				return option.id;
+			}
+		}
+		
+		String id = getObjectIdByValue(Workfront.OBJCODE_POPT, value);
+		synchronized (this) {
+			ParameterOption option = parameterOptions.get(parameterID).get(value);
+			if (option != null) {
+				option.id = id;
+			}
+		}
+		return id;
+	}
 
+	/*
+	 * Call refreshOpportunityReferences() first, so the reference index includes
+	 * the projects and requests changed since the last cycle.
+	 */
 	public void removeOpportunities(List<Opportunity> opportunities) throws WorkfrontException {
 		for (Opportunity opp : opportunities) {
-			if (opportunityIsReferencedByProject(opp) || opportunityIsReferencedByRequest(opp)) {
+			if (opportunityIsReferenced(opp)) {
 				hideOpportunity(opp);
 			}
 			else {
@@ -259,35 +400,147 @@ public class WorkfrontClient {
 		}
 	}
 	
-	private boolean opportunityIsReferencedByProject(Opportunity opp) throws WorkfrontException {
-		return opportunityIsReferencedBy(Workfront.OBJCODE_PROJ, Workfront.LEAD_OPPORTUNITY_ID, opp)
-				|| opportunityIsReferencedBy(Workfront.OBJCODE_PROJ, Workfront.OPPORTUNITIES, opp);
+	private synchronized boolean opportunityIsReferenced(Opportunity opp) {
+		Set<String> references = opportunityReferences.get(opp.getCrmOpportunityID().toUpperCase());
+		return references != null && !references.isEmpty();
 	}
 	
-	private boolean opportunityIsReferencedByRequest(Opportunity opp) throws WorkfrontException {
-		return opportunityIsReferencedBy(Workfront.OBJCODE_ISSUE, Workfront.LEAD_OPPORTUNITY_ID, opp)
-				|| opportunityIsReferencedBy(Workfront.OBJCODE_ISSUE, Workfront.OPPORTUNITIES, opp);
+	
+	/**
+	 * Updates the opportunity references of projects and requests that have
+	 * been loaded from Workfront.
+	 */
+	public synchronized void updateOpportunityReferences(Collection<? extends OpportunityHolder> holders) {
+		for (OpportunityHolder holder : holders) {
+			setOpportunityReferences(holder.getWorkfrontObjectCode(), holder.getWorkfrontID(), holder.getAllOpportunityIDs());
+		}
 	}
 	
-	private boolean opportunityIsReferencedBy(String objcode, String param, Opportunity opp) throws WorkfrontException {
-		Map<String, Object> map = new HashMap<String, Object>();
-		map.put(param, opp.getCrmOpportunityID());
+	/**
+	 * Updates the opportunity references of every project and request, active
+	 * or not, that was changed in Workfront between the given times. Objects
+	 * that no longer reference any opportunities are included, so references
+	 * that were removed are dropped too.
+	 */
+	public void refreshOpportunityReferences(Date lastUpdateStart, Date lastUpdateEnd) throws WorkfrontException {
+		logger.entry(lastUpdateStart, lastUpdateEnd);
+		
+		int count = 0;
 		try {
-			JSONArray results = client.search(objcode, map);
-			return results.length() > 0;
-		} catch (StreamClientException e) {
+			for (String objcode : new String[] {Workfront.OBJCODE_PROJ, Workfront.OBJCODE_ISSUE}) {
+				// Requests are searched with time zone dates, as in formatRequestSearchParameters()
+				DateFormat format = Workfront.OBJCODE_ISSUE.equals(objcode) ? Workfront.dateFormatterTZ.get() : Workfront.dateFormatter.get();
+				Map<String, Object> params = new HashMap<String, Object>();
+				params.put(Workfront.LAST_UPDATE_DATE, format.format(lastUpdateStart));
+				params.put(Workfront.LAST_UPDATE_DATE_RANGE, format.format(lastUpdateEnd));
+				params.put(Workfront.LAST_UPDATE_DATE_MOD, Workfront.MOD_BETWEEN);
+				count += loadOpportunityReferences(objcode, params);
+			}
+		} catch (StreamClientException | JSONException e) {
 			throw new WorkfrontException(e);
 		}
+		
+		logger.debug("Refreshed opportunity references from {} changed projects and requests", count);
+		logger.exit();
+	}
+	
+	/*
+	 * Finds every project and request, active or not, that references an opportunity.
+	 */
+	private void loadOpportunityReferences() throws StreamClientException, JSONException {
+		logger.entry();
+		
+		int count = 0;
+		for (String objcode : new String[] {Workfront.OBJCODE_PROJ, Workfront.OBJCODE_ISSUE}) {
+			for (String modifier : new String[] {Workfront.LEAD_OPPORTUNITY_ID_MOD, Workfront.OPPORTUNITIES_MOD}) {
+				Map<String, Object> params = new HashMap<String, Object>();
+				params.put(modifier, Workfront.MOD_NOT_NULL);
+				count += loadOpportunityReferences(objcode, params);
+			}
+		}
+		
+		logger.debug("Loaded opportunity references from {} projects and requests", count);
+		logger.exit();
+	}
+	
+	/*
+	 * Sets the opportunity references of the objects the search finds and
+	 * returns how many there were.
+	 */
+	private int loadOpportunityReferences(String objcode, Map<String, Object> params) throws StreamClientException, JSONException {
+		String[] fields = new String[] {Workfront.ID, Workfront.LEAD_OPPORTUNITY_ID, Workfront.OPPORTUNITIES};
+		int count = 0;
+		SearchCursor results = client.searchAll(objcode, params, fields, StreamClient.DEFAULT_PAGE_SIZE, prefetchPages);
+		while (results.hasNext()) {
+			JSONObject object = results.next();
+			
+			List<String> ids = new ArrayList<String>();
+			String lead = object.getStringOrNull(Workfront.LEAD_OPPORTUNITY_ID);
+			if (lead != null) {
+				ids.add(lead);
+			}
+			Object opportunities = object.opt(Workfront.OPPORTUNITIES);
+			if (opportunities instanceof JSONArray) {
+				for (int i = 0; i < ((JSONArray)opportunities).length(); i++) {
+					ids.add(((JSONArray)opportunities).getString(i));
+				}
+			} else if (opportunities != null && opportunities != JSONObject.NULL) {
+				ids.add(opportunities.toString());
+			}
+			
+			synchronized (this) {
+				setOpportunityReferences(objcode, object.getString(Workfront.ID), ids);
+			}
+			count++;
+		}
+		return count;
+	}
+	
+	private void setOpportunityReferences(String objcode, String id, List<String> opportunityIDs) {
+		String key = objcode + ":" + id;
+		
+		// Drop the references this object used to have
+		Set<String> previous = referencedOpportunities.remove(key);
+		if (previous != null) {
+			for (String opp : previous) {
+				Set<String> references = opportunityReferences.get(opp);
+				references.remove(key);
+				if (references.isEmpty()) {
+					opportunityReferences.remove(opp);
+				}
+			}
+		}
+		
+		if (opportunityIDs == null || opportunityIDs.isEmpty()) {
+			return;
+		}
+		
+		Set<String> current = new HashSet<String>();
+		for (String opp : opportunityIDs) {
+			current.add(opp.toUpperCase());
+		}
+		referencedOpportunities.put(key, current);
+		for (String opp : current) {
+			Set<String> references = opportunityReferences.get(opp);
+			if (references == null) {
+				references = new HashSet<String>();
+				opportunityReferences.put(opp, references);
+			}
+			references.add(key);
+		}
 	}
 
 	private void deleteOpportunity(Opportunity opp) throws WorkfrontException {
 		try {
-			String optionID = getObjectIdByValue(Workfront.OBJCODE_POPT, opp.getCrmOpportunityID());
+			String optionID = getParameterOptionID(opportunitiesFieldID, opp.getCrmOpportunityID());
 			boolean success = client.delete(Workfront.OBJCODE_POPT, optionID);
 			if (!success) {
 				logger.error("Unable to remove parameter {}", opp);
 			}
 			else {
+				synchronized (this) {
+					parameterOptions.get(opportunitiesFieldID).remove(opp.getCrmOpportunityID());
+				}
 				logger.debug("Removed opportunity {} from the list", opp.getName());
 			}
 		} catch (StreamClientException | JSONException e) {
@@ -297,7 +550,14 @@ public class WorkfrontClient {
 	
 	private void hideOpportunity(Opportunity opp) throws WorkfrontException {
 		try {
-			String optionID = getObjectIdByValue(Workfront.OBJCODE_POPT, opp.getCrmOpportunityID());
+			String optionID = getParameterOptionID(opportunitiesFieldID, opp.getCrmOpportunityID());
+			synchronized (this) {
+				ParameterOption option = parameterOptions.get(opportunitiesFieldID).get(opp.getCrmOpportunityID());
+				if (option != null && option.hidden) {
+					logger.debug("Opportunity {} is already hidden", opp.getName());
+					return;
+				}
+			}
 			Map<String, Object> map = new HashMap<String, Object>();
 			map.put(Workfront.IS_HIDDEN, true);
 			JSONObject result = client.put(Workfront.OBJCODE_POPT, optionID, map, new String[] {Workfront.ID, Workfront.IS_HIDDEN, Workfront.LABEL});
@@ -305,6 +565,12 @@ public class WorkfrontClient {
 				logger.error("Unable to hide parameter {}", opp);
 			}
 			else {
+				synchronized (this) {
+					ParameterOption option = parameterOptions.get(opportunitiesFieldID).get(opp.getCrmOpportunityID());
+					if (option != null) {
+						option.hidden = true;
+					}
+				}
 				logger.debug("Hid opportunity {} in the list", opp.getName());
 			}
 		} catch (StreamClientException | JSONException e) {
@@ -344,8 +610,13 @@ public class WorkfrontClient {
 		fields.put(Workfront.TASK_ID, wfTaskID);
 		fields.put(Workfront.HOURS, worklog.getHoursWorked());
 		fields.put(Workfront.OWNER_ID, users.get(worklog.getJiraWorker()));
-		fields.put(Workfront.ENTRY_DATE, Workfront.dateFormatter.format(worklog.getDateWorked()));
+		fields.put(Workfront.ENTRY_DATE, Workfront.dateFormatter.get().format(worklog.getDateWorked()));
 		fields.put(Workfront.DESCRIPTION, worklog.getJiraIssueUrl() + "\n");
+		if (isBatching()) {
+			queueWrite(BatchOperation.post(Workfront.OBJCODE_HOUR, fields), "worklog entry " + fields.toString(), false);
+			logger.exit();
+			return;
+		}
 		try {
 			logger.debug("Adding worklog entry: {}", fields.toString());
 			client.post(Workfront.OBJCODE_HOUR, fields);
@@ -376,7 +647,7 @@ public class WorkfrontClient {
 		logger.entry(project);
 		
 		Map<String, Object> map = new HashMap<String, Object>();
-		map.put(Workfront.LAST_JIRA_SYNC, Workfront.dateFormatter.format(project.getLastJiraSync()));
+		map.put(Workfront.LAST_JIRA_SYNC, Workfront.dateFormatter.get().format(project.getLastJiraSync()));
 		try {
 			logger.debug("Updating Workfront project with last sync timestamp: {}", map.toString());
 			client.put(Workfront.OBJCODE_PROJ, project.getWorkfrontProjectID(), map);
@@ -399,6 +670,11 @@ public class WorkfrontClient {
 		map.put(Workfront.OPPORTUNITY_STATE, curopp.getState());
 		map.put(Workfront.LEAD_OPPORTUNITY_ID, curopp.getCrmOpportunityID());
 		map.put(Workfront.LEAD_OPPORTUNITY_NAME, curopp.getName());
+		if (isBatching()) {
+			queueWrite(BatchOperation.put(wfObject.getWorkfrontObjectCode(), wfObject.getWorkfrontID(), map), "opportunity status " + map.toString(), false);
+			logger.exit();
+			return;
+		}
 		try {
 			logger.debug("Updating opportunity status {}", map.toString());
 			client.put(wfObject.getWorkfrontObjectCode(), wfObject.getWorkfrontID(), map);
@@ -471,26 +747,28 @@ public class WorkfrontClient {
 		}
 		
 		// Search Workfront
-		JSONArray requests;
+		SearchCursor requests;
 		try {
-			requests = client.search(Workfront.OBJCODE_ISSUE, searchParams, REQUEST_FIELDS);
+			requests = client.searchAll(Workfront.OBJCODE_ISSUE, searchParams, REQUEST_FIELDS, StreamClient.DEFAULT_PAGE_SIZE, prefetchPages);
 		}
 		catch (StreamClientException e) {
 			throw new WorkfrontException(e);
 		}
 		
-		if (activeRequests == null) {
+		boolean initialLoad = (activeRequests == null);
+		if (initialLoad) {
 			activeRequests = new HashMap<String, Request>();
-			logger.debug("Found {} active requests in Workfront", requests.length());
-		}
-		else {
-			logger.debug("Found {} active requests that were updated between {} and {}", requests.length(), startTimestamp, endTimestamp);
 		}
 		
 		// Process the results
-		for (int i = 0; i < requests.length(); i++) {
+		int found = 0;
+		while (true) {
 			try {
-				JSONObject request = (JSONObject)requests.get(i);
+				if (!requests.hasNext()) {
+					break;
+				}
+				JSONObject request = requests.next();
+				found++;
 				String requestID = request.getString(Workfront.ID);
 				String status = request.getString(Workfront.STATUS);
 				String name = request.getString(Workfront.NAME);
@@ -529,11 +807,19 @@ public class WorkfrontClient {
 						activeRequests.get(requestID).setOpportunities(request);
 					}
 				}
-			} catch (JSONException e) {
+			} catch (JSONException | StreamClientException e) {
+				requests.close();
 				throw new WorkfrontException(e);
 			}
 		}
 
+		if (initialLoad) {
+			logger.debug("Found {} active requests in Workfront", found);
+		}
+		else {
+			logger.debug("Found {} active requests that were updated between {} and {}", found, startTimestamp, endTimestamp);
+		}
+
 		return logger.exit(activeRequests);
 	}
 	
@@ -557,26 +843,33 @@ public class WorkfrontClient {
 		}
 		
 		// Search Workfront
-		JSONArray projects;
+		SearchCursor projects;
 		try {
-			projects = client.search(Workfront.OBJCODE_PROJ, searchParams, PROJECT_FIELDS);
+			projects = client.searchAll(Workfront.OBJCODE_PROJ, searchParams, PROJECT_FIELDS, StreamClient.DEFAULT_PAGE_SIZE, prefetchPages);
 		}
 		catch (StreamClientException e) {
 			throw new WorkfrontException(e);
 		}
 			
-		if (activeProjects == null) {
+		boolean initialLoad = (activeProjects == null);
+		if (initialLoad) {
 			activeProjects = new HashMap<String, Project>();
-			logger.debug("Found {} projects in Workfront", projects.length());
-		}
-		else {
-			logger.debug("Found {} projects that were updated between {} and {}", projects.length(), startTimestamp, endTimestamp);
 		}
 		
+		// Projects whose tasks need to be (re)loaded. The tasks for all of them
+		// are fetched together once we've been through the projects.
+		List<Project> newProjects = new ArrayList<Project>();
+		List<Project> updatedProjects = new ArrayList<Project>();
+		
 		// Process the results
-		for (int i = 0; i < projects.length(); i++) {
+		int found = 0;
+		while (true) {
 			try {
-				JSONObject project = (JSONObject)projects.get(i);
+				if (!projects.hasNext()) {
+					break;
+				}
+				JSONObject project = projects.next();
+				found++;
 				String projectID = project.getString(Workfront.ID);
 				String status = project.getString(Workfront.STATUS);
 				String name = project.getString(Workfront.NAME);
@@ -596,12 +889,7 @@ public class WorkfrontClient {
 						
 						// add the project to the list
 						Project p = new Project(project);
-						try {
-							p.setImplementationTaskID(getImplementationTaskID(p.getWorkfrontProjectID()));
-						} catch (WorkfrontObjectNotFoundException e) {
-							logger.catching(e);
-						}
-						addDevTasks(p);
+						newProjects.add(p);
 						activeProjects.put(p.getWorkfrontProjectID(), p);
 						logger.debug("Added project '{}' ({}) to the list of projects to sync", name, projectID);
 					} 
@@ -628,16 +916,33 @@ public class WorkfrontClient {
 					else {
 						Project p = activeProjects.get(projectID);
 						p.update(project);
-						addDevTasks(p);
+						updatedProjects.add(p);
 					}
 				}
 			} catch (JSONException e) {
+				projects.close();
 				throw new WorkfrontException(e);
 			} catch (StreamClientException e) {
+				projects.close();
 				throw new WorkfrontException(e);
 			}
 		}
 
+		try {
+			loadImplementationTaskIDs(newProjects);
+			newProjects.addAll(updatedProjects);
+			loadDevTasks(newProjects);
+		} catch (JSONException | StreamClientException e) {
+			throw new WorkfrontException(e);
+		}
+
+		if (initialLoad) {
+			logger.debug("Found {} projects in Workfront", found);
+		}
+		else {
+			logger.debug("Found {} projects that were updated between {} and {}", found, startTimestamp, endTimestamp);
+		}
+
 		return logger.exit(activeProjects);
 	}
 
@@ -663,6 +968,47 @@ public class WorkfrontClient {
 		return logger.exit(updatedTask);
 	}
 
+	/**
+	 * Updates several tasks in the project with as few calls to Workfront as possible.
+	 * The tasks are sent in chunks of up to Workfront.BulkUpdateSize tasks per call.
+	 * Workfront rejects the whole chunk if one task in it is rejected, so a chunk
+	 * that fails is sent again one task at a time, and only the tasks that fail
+	 * on their own are left out. Returns the tasks that were updated.
+	 */
+	public List<Task> updateTasks(Project project, List<Task> updatedTasks) {
+		logger.entry(project, updatedTasks);
+		
+		List<Task> written = new ArrayList<Task>();
+		for (int start = 0; start < updatedTasks.size(); start += bulkUpdateSize) {
+			List<Task> tasks = updatedTasks.subList(start, Math.min(start + bulkUpdateSize, updatedTasks.size()));
+			List<Map<String, Object>> chunk = new ArrayList<Map<String, Object>>();
+			for (Task task : tasks) {
+				Map<String, Object> fields = formatTaskFields(project, task);
+				fields.put(Workfront.ID, task.getWorkfrontTaskID());
+				chunk.add(fields);
+			}
+			
+			try {
+				logger.debug("Updating {} Workfront tasks: {}", chunk.size(), chunk.toString());
+				client.bulkPut(Workfront.OBJCODE_TASK, chunk);
+				written.addAll(tasks);
+				continue;
+			} catch (StreamClientException e) {
+				logger.warn("Bulk update of {} Workfront tasks failed, updating them one at a time: {}", chunk.size(), e.getMessage());
+			}
+			
+			for (Task task : tasks) {
+				try {
+					written.add(updateTask(project, task));
+				} catch (WorkfrontException e) {
+					logger.catching(e);
+				}
+			}
+		}
+		
+		return logger.exit(written);
+	}
+
 	public Task addImplementationSubtask(Project project, Task task) throws WorkfrontException {
 		logger.entry(project, task);
 		
@@ -751,6 +1097,141 @@ public class WorkfrontClient {
 		return logger.exit(fields);
 	}
 
+	public boolean isBatching() {
+		return batchSize > 0;
+	}
+	
+	private void queueWrite(BatchOperation operation, String description, boolean duplicateAllowed) {
+		logger.debug("Queueing {}", description);
+		pendingWrites.get().add(new PendingWrite(operation, description, duplicateAllowed));
+	}
+	
+	/**
+	 * Throws away the writes this thread has queued without sending them.
+	 */
+	public void discardWrites() {
+		List<PendingWrite> writes = pendingWrites.get();
+		if (writes.isEmpty()) {
+			return;
+		}
+		
+		logger.warn("Discarding {} queued Workfront writes", writes.size());
+		pendingWrites.set(new ArrayList<PendingWrite>());
+		writesFailed(writes);
+	}
+	
+	/*
+	 * Forgets the new parameter options among writes that were never made, so
+	 * they are posted again the next time they are needed.
+	 */
+	private void writesFailed(List<PendingWrite> writes) {
+		for (PendingWrite write : writes) {
+			BatchOperation operation = write.operation;
+			if (Workfront.OBJCODE_POPT.equals(operation.getObjCode()) && operation.getObjID() == null) {
+				parameterOptionFailed((String)operation.getParams().get(Workfront.PARAMETER_ID),
+						(String)operation.getParams().get(Workfront.VALUE));
+			}
+		}
+	}
+	
+	/**
+	 * Sends all the queued writes to Workfront in batches. Writes that Workfront
+	 * rejected are returned keyed by the ID of the object they were writing to
+	 * (or by their description for new objects), so the caller can decide what to
+	 * do about them. Duplicate parameter options are logged and ignored, as they
+	 * are when batching is turned off.
+	 * 
+	 * With atomic batches, one rejected write rolls back its whole batch, so the
+	 * writes that are allowed to fail as duplicates (new parameter options) are
+	 * always sent in batches of their own that aren't atomic.
+	 */
+	public Map<String, WorkfrontException> flushWrites() throws WorkfrontException {
+		logger.entry();
+		
+		Map<String, WorkfrontException> failures = new LinkedHashMap<String, WorkfrontException>();
+		if (pendingWrites.get().isEmpty()) {
+			return logger.exit(failures);
+		}
+		
+		List<PendingWrite> writes = pendingWrites.get();
+		pendingWrites.set(new ArrayList<PendingWrite>());
+		
+		if (atomicBatches) {
+			List<PendingWrite> duplicatesAllowed = new ArrayList<PendingWrite>();
+			List<PendingWrite> others = new ArrayList<PendingWrite>();
+			for (PendingWrite write : writes) {
+				if (write.duplicateAllowed) {
+					duplicatesAllowed.add(write);
+				} else {
+					others.add(write);
+				}
+			}
+			sendWrites(duplicatesAllowed, false, failures);
+			sendWrites(others, true, failures);
+		} else {
+			sendWrites(writes, false, failures);
+		}
+		
+		return logger.exit(failures);
+	}
+	
+	/*
+	 * Sends the writes in batches of batchSize and adds the ones Workfront
+	 * rejected to failures.
+	 */
+	private void sendWrites(List<PendingWrite> writes, boolean atomic, Map<String, WorkfrontException> failures) throws WorkfrontException {
+		for (int start = 0; start < writes.size(); start += batchSize) {
+			List<PendingWrite> chunk = writes.subList(start, Math.min(start + batchSize, writes.size()));
+			List<BatchOperation> operations = new ArrayList<BatchOperation>();
+			for (PendingWrite write : chunk) {
+				operations.add(write.operation);
+			}
+			
+			JSONArray results;
+			try {
+				logger.debug("Sending batch of {} writes to Workfront", operations.size());
+				results = client.batch(operations, atomic);
+			} catch (StreamClientException e) {
+				// Nothing in this batch was written, and the rest won't be sent
+				writesFailed(writes.subList(start, writes.size()));
+				throw new WorkfrontException(e);
+			}
+			
+			for (int i = 0; i < results.length() && i < chunk.size(); i++) {
+				PendingWrite write = chunk.get(i);
+				JSONObject result = results.optJSONObject(i);
+				BatchOperation operation = write.operation;
+				boolean newOption = Workfront.OBJCODE_POPT.equals(operation.getObjCode()) && operation.getObjID() == null;
+				if (result == null || !result.has("error")) {
+					if (newOption && result != null) {
+						parameterOptionAdded((String)operation.getParams().get(Workfront.PARAMETER_ID),
+								(String)operation.getParams().get(Workfront.VALUE), result.optJSONObject("data"));
+					}
+					continue;
+				}
+				
+				try {
+					JSONObject error = result.getJSONObject("error");
+					String msgkey = error.has("msgKey") ? error.getString("msgKey") : null;
+					if (write.duplicateAllowed && Workfront.UNIQUE_KEY_VIOLATION.equals(msgkey)) {
+						logger.warn("{} already exists", write.description);
+						continue;
+					}
+					
+					if (newOption) {
+						parameterOptionFailed((String)operation.getParams().get(Workfront.PARAMETER_ID),
+								(String)operation.getParams().get(Workfront.VALUE));
+					}
+					logger.error("Workfront rejected {}: {}", write.description, error.getStringOrNull("message"));
+					String key = write.operation.getObjID() != null ? write.operation.getObjID() : write.description;
+					failures.put(key, new WorkfrontException(new StreamClientException(error.getStringOrNull("message"), msgkey)));
+				} catch (JSONException e) {
+					throw new WorkfrontException(e);
+				}
+			}
+		}
+	}
+
 	public String getUserID(String name) throws WorkfrontException {
 		logger.entry(name);
 		
@@ -767,13 +1248,13 @@ public class WorkfrontClient {
 		HashMap<String, String> users = new HashMap<String, String>();
 
 		Map<String, Object> params = new HashMap<String, Object>();
-		params.put(Workfront.LIMIT, Workfront.MAX_USERS); 
-		JSONArray results;
 		try {
-			results = client.search(Workfront.OBJCODE_USER, params, new String[]{Workfront.ID, Workfront.NAME});
+			SearchCursor results = client.searchAll(Workfront.OBJCODE_USER, params, new String[]{Workfront.ID, Workfront.NAME}, 
+					Integer.parseInt(Workfront.MAX_USERS), prefetchPages);
 
-			for (int i=0; i<results.length(); i++) {
-				users.put(results.getJSONObject(i).getString(Workfront.NAME), results.getJSONObject(i).getString(Workfront.ID));
+			while (results.hasNext()) {
+				JSONObject user = results.next();
+				users.put(user.getString(Workfront.NAME), user.getString(Workfront.ID));
 			}
 		} catch (StreamClientException e) { 
 			throw new WorkfrontException(e);
@@ -784,52 +1265,80 @@ public class WorkfrontClient {
 		return logger.exit(users);
 	}
 
-	private void addDevTasks(Project project) throws StreamClientException {
-		logger.entry(project);
-		
-		Map<String, Object> searchParams = formatDevTasksSearchParameters(project.getWorkfrontProjectID());
-		JSONArray tasks = client.search(Workfront.OBJCODE_TASK, searchParams, TASK_FIELDS);
-
-		for (int i = 0; i < tasks.length(); i++) {
-			try {
-				project.addDevTask(new Task((JSONObject)tasks.getJSONObject(i)));
-				String epicName = ((JSONObject)tasks.getJSONObject(i)).getStringOrNull(Workfront.JIRA_ISSUE_EPIC_NAME);
+	/*
+	 * Adds the dev tasks to each project, searching for the tasks of many projects at once.
+	 */
+	private void loadDevTasks(List<Project> projects) throws JSONException, StreamClientException {
+		logger.entry(projects.size());
+		
+		for (Map.Entry<Project, List<JSONObject>> entry : searchProjectTasks(projects, Workfront.JIRA_SYNC_TASK_MOD).entrySet()) {
+			Project project = entry.getKey();
+			project.setJiraSyncNeeded(true);
+			for (JSONObject task : entry.getValue()) {
+				project.addDevTask(new Task(task));
+				String epicName = task.getStringOrNull(Workfront.JIRA_ISSUE_EPIC_NAME);
 				if (epicName != null) {
 					project.addSpecialEpic(epicName);
 				}
-			} catch (JSONException e) {
-				throw new StreamClientException(e);
 			}
 		}
 		
 		logger.exit();
 	}
 
-	private String getImplementationTaskID(String projectID) throws JSONException, StreamClientException, WorkfrontObjectNotFoundException {
-		logger.entry(projectID);
-		
-		Map<String, Object> map = new HashMap<String, Object>();
-		map.put(Workfront.PROJECT_ID, projectID);
-		map.put(Workfront.SYNC_WITH_JIRA_MOD, Workfront.MOD_NOT_NULL);
-		
-		JSONArray results = client.search(Workfront.OBJCODE_TASK, map, TASK_FIELDS);
-		if(results.length() < 1) {
-			throw new WorkfrontObjectNotFoundException("Could not find implementation task for project " + projectID);
+	/*
+	 * Sets the implementation task of each project, searching for the tasks of many projects at once.
+	 */
+	private void loadImplementationTaskIDs(List<Project> projects) throws JSONException, StreamClientException {
+		logger.entry(projects.size());
+		
+		Map<Project, List<JSONObject>> tasks = searchProjectTasks(projects, Workfront.SYNC_WITH_JIRA_MOD);
+		for (Project project : projects) {
+			List<JSONObject> results = tasks.get(project);
+			if (results.isEmpty()) {
+				logger.warn("Could not find implementation task for project {}", project.getWorkfrontProjectID());
+				continue;
+			}
+			project.setImplementationTaskID(results.get(0).getString(Workfront.ID));
 		}
 		
-		return logger.exit(results.getJSONObject(0).getString(Workfront.ID));
+		logger.exit();
 	}
-
-	private Map<String, Object> formatDevTasksSearchParameters(String projectID) {
-		logger.entry(projectID);
+	
+	/*
+	 * Finds the tasks of the given projects where the given custom field isn't null.
+	 * Returns the tasks grouped by project.
+	 */
+	private Map<Project, List<JSONObject>> searchProjectTasks(List<Project> projects, String notNullModifier) throws JSONException, StreamClientException {
+		Map<Project, List<JSONObject>> tasks = new LinkedHashMap<Project, List<JSONObject>>();
+		Map<String, Project> projectsByID = new HashMap<String, Project>();
+		for (Project project : projects) {
+			tasks.put(project, new ArrayList<JSONObject>());
+			projectsByID.put(project.getWorkfrontProjectID(), project);
+		}
 		
-		//TODO: Update the search params to find all issues where the Sync With Jira
-		//      custom field is not null.
-		Map<String, Object> search = new HashMap<String, Object>();
-		search.put(Workfront.PROJECT_ID, projectID);
-		search.put(Workfront.JIRA_SYNC_TASK_MOD, Workfront.MOD_NOT_NULL);
+		for (int start = 0; start < projects.size(); start += TASK_SEARCH_PROJECTS) {
+			List<String> projectIDs = new ArrayList<String>();
+			for (Project project : projects.subList(start, Math.min(start + TASK_SEARCH_PROJECTS, projects.size()))) {
+				projectIDs.add(project.getWorkfrontProjectID());
+			}
+			
+			Map<String, Object> search = new HashMap<String, Object>();
+			search.put(Workfront.PROJECT_ID, projectIDs);
+			search.put(Workfront.PROJECT_ID_MOD, Workfront.MOD_IN);
+			search.put(notNullModifier, Workfront.MOD_NOT_NULL);
+			
+			SearchCursor results = client.searchAll(Workfront.OBJCODE_TASK, search, TASK_FIELDS, StreamClient.DEFAULT_PAGE_SIZE, prefetchPages);
+			while (results.hasNext()) {
+				JSONObject task = results.next();
+				Project project = projectsByID.get(task.getStringOrNull(Workfront.PROJECT_ID));
+				if (project != null) {
+					tasks.get(project).add(task);
+				}
+			}
+		}
 		
-		return logger.exit(search);
+		return tasks;
 	}
 	
 	private Map<String, Object> formatActiveRequestsSearchParameters(Date lastUpdateStart, Date lastUpdateEnd) {
@@ -848,15 +1357,11 @@ public class WorkfrontClient {
 		}
 		
 		else if (lastUpdateStart != null && lastUpdateEnd != null) {
-			search.put(Workfront.LAST_UPDATE_DATE, Workfront.dateFormatterTZ.format(lastUpdateStart));
-			search.put(Workfront.LAST_UPDATE_DATE_RANGE, Workfront.dateFormatterTZ.format(lastUpdateEnd));
+			search.put(Workfront.LAST_UPDATE_DATE, Workfront.dateFormatterTZ.get().format(lastUpdateStart));
+			search.put(Workfront.LAST_UPDATE_DATE_RANGE, Workfront.dateFormatterTZ.get().format(lastUpdateEnd));
 			search.put(Workfront.LAST_UPDATE_DATE_MOD, Workfront.MOD_BETWEEN);
 		}
 		
-		// By default Workfront will only return 100 items in the query
-		// Tell Workfront we want them all (or as many as we can get - Workfront has a max of 2,000)
-		search.put(Workfront.LIMIT, Workfront.MAX_PROJECTS);
-		
 		return logger.exit(search);
 	}
 
@@ -878,15 +1383,11 @@ public class WorkfrontClient {
 		// If dates were provided, find all projects that were changed
 		// since the last update.
 		else if (lastUpdateStart != null && lastUpdateEnd != null) {
-			search.put(Workfront.LAST_UPDATE_DATE, Workfront.dateFormatter.format(lastUpdateStart));
-			search.put(Workfront.LAST_UPDATE_DATE_RANGE, Workfront.dateFormatter.format(lastUpdateEnd));
+			search.put(Workfront.LAST_UPDATE_DATE, Workfront.dateFormatter.get().format(lastUpdateStart));
+			search.put(Workfront.LAST_UPDATE_DATE_RANGE, Workfront.dateFormatter.get().format(lastUpdateEnd));
 			search.put(Workfront.LAST_UPDATE_DATE_MOD, Workfront.MOD_BETWEEN);
 		}
 		
-		// By default Workfront will only return 100 items in the query
-		// Tell Workfront we want them all (or as many as we can get - Workfront has a max of 2,000)
-		search.put(Workfront.LIMIT, Workfront.MAX_PROJECTS);
-		
 		return logger.exit(search);
 	}
 	
@@ -901,15 +1402,15 @@ public class WorkfrontClient {
 	}
 
 	
-	private JSONArray getObjects(String objcode, String paramName, String paramValue, String[] fields) throws StreamClientException, JSONException {
+	private SearchCursor getObjects(String objcode, String paramName, String paramValue, String[] fields) throws StreamClientException, JSONException {
 		logger.entry(objcode, paramName);
 		
+		// Page through the results so we aren't limited to the first 2,000 objects
 		Map<String, Object> map = new HashMap<String, Object>();
 		map.put(paramName, paramValue);
-		map.put(Workfront.LIMIT, Workfront.MAX_PROJECTS);
-		JSONArray results = client.search(objcode, map, fields);
+		SearchCursor results = client.searchAll(objcode, map, fields, StreamClient.DEFAULT_PAGE_SIZE, prefetchPages);
 		
-		if(results.length() < 1) {
+		if(!results.hasNext()) {
 			logger.warn("No objects found: objcode={}, objID={}, objValue={}", objcode, paramName, paramValue);
 		}
 		
@@ -0,0 +1,63 @@
+package com.spillman.workfront.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * A single call to be sent to Workfront as part of a batch request.
+ */
+public class BatchOperation {
+	private String method;
+	private String objCode;
+	private String objID;
+	private Map<String, Object> params;
+
+	private BatchOperation(String method, String objCode, String objID, Map<String, Object> params) {
+		this.method = method;
+		this.objCode = objCode;
+		this.objID = objID;
+		this.params = params;
+	}
+
+	public static BatchOperation post(String objCode, Map<String, Object> message) {
+		return new BatchOperation(StreamClient.METH_POST, objCode, null, message);
+	}
+
+	public static BatchOperation put(String objCode, String objID, Map<String, Object> message) {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("updates", new JSONObject(message).toString());
+		return new BatchOperation(StreamClient.METH_PUT, objCode, objID, params);
+	}
+
+	public static BatchOperation delete(String objCode, String objID, boolean force) {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("force", force);
+		return new BatchOperation(StreamClient.METH_DELETE, objCode, objID, params);
+	}
+
+	public String toString() {
+		return method + " /" + getPath() + " " + params;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getObjCode() {
+		return objCode;
+	}
+
+	public String getObjID() {
+		return objID;
+	}
+
+	public Map<String, Object> getParams() {
+		return params;
+	}
+
+	String getPath() {
+		return objID == null ? objCode : objCode + "/" + objID;
+	}
+}
@@ -0,0 +1,81 @@
+package com.spillman.workfront.api;
+
+/**
+ * Latency breakdown of a single Workfront API call.
+ */
+public class RequestTiming {
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private long connectNanos;
+	private long tlsNanos;
+	private long firstByteNanos;
+	private long bodyNanos;
+	private boolean reusedConnection;
+	private boolean tlsTimeKnown = true;
+
+	public String toString() {
+		return String.format("connect=%.1fms tls=%s firstByte=%.1fms body=%.1fms total=%.1fms%s",
+				connectNanos / NANOS_PER_MILLI,
+				tlsTimeKnown ? String.format("%.1fms", tlsNanos / NANOS_PER_MILLI) : "unknown",
+				firstByteNanos / NANOS_PER_MILLI,
+				bodyNanos / NANOS_PER_MILLI,
+				getTotalNanos() / NANOS_PER_MILLI,
+				isReusedConnection() ? " (reused connection)" : "");
+	}
+
+	public boolean isReusedConnection() {
+		return reusedConnection;
+	}
+
+	public void setReusedConnection(boolean reusedConnection) {
+		this.reusedConnection = reusedConnection;
+	}
+
+	/**
+	 * False if a TLS handshake happened but its time couldn't be measured. The
+	 * handshake is then included in the connect time and the TLS time is zero.
+	 */
+	public boolean isTlsTimeKnown() {
+		return tlsTimeKnown;
+	}
+
+	public void setTlsTimeKnown(boolean tlsTimeKnown) {
+		this.tlsTimeKnown = tlsTimeKnown;
+	}
+
+	public long getTotalNanos() {
+		return connectNanos + tlsNanos + firstByteNanos + bodyNanos;
+	}
+
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+
+	public void setConnectNanos(long connectNanos) {
+		this.connectNanos = connectNanos;
+	}
+
+	public long getTlsNanos() {
+		return tlsNanos;
+	}
+
+	public void setTlsNanos(long tlsNanos) {
+		this.tlsNanos = tlsNanos;
+	}
+
+	public long getFirstByteNanos() {
+		return firstByteNanos;
+	}
+
+	public void setFirstByteNanos(long firstByteNanos) {
+		this.firstByteNanos = firstByteNanos;
+	}
+
+	public long getBodyNanos() {
+		return bodyNanos;
+	}
+
+	public void setBodyNanos(long bodyNanos) {
+		this.bodyNanos = bodyNanos;
+	}
+}
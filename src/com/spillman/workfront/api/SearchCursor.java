@@ -0,0 +1,154 @@
+package com.spillman.workfront.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Walks the results of a Workfront search one record at a time, requesting the
+ * results from Workfront a page at a time using $$FIRST and $$LIMIT. Only the
+ * current page (and the next one, when prefetching) is held in memory.
+ *
+ * Workfront doesn't promise the same order from one request to the next, so
+ * every page is sorted by ID. Otherwise a record could move between pages and
+ * be skipped or returned twice.
+ *
+ * When prefetching is turned on the next page is requested in the background
+ * while the caller works through the current page.
+ */
+public class SearchCursor {
+	private static final String FIRST = "$$FIRST";
+	private static final String LIMIT = "$$LIMIT";
+	private static final String ID_SORT = "ID_Sort";
+	private static final String ASCENDING = "asc";
+
+	private static final ExecutorService prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "workfront-search-prefetch");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private StreamClient client;
+	private String objCode;
+	private Map<String, Object> query;
+	private Set<String> fields;
+	private int pageSize;
+	private boolean prefetch;
+
+	private JSONArray page = null;
+	private int index = 0;
+	private int first = 0;
+	private boolean lastPage = false;
+	private Future<JSONArray> nextPage = null;
+	private boolean closed = false;
+
+	SearchCursor(StreamClient client, String objCode, Map<String, Object> query, Set<String> fields, int pageSize, boolean prefetch) {
+		this.client = client;
+		this.objCode = objCode;
+		this.query = query;
+		this.fields = fields;
+		this.pageSize = pageSize;
+		this.prefetch = prefetch;
+	}
+
+	public boolean hasNext() throws StreamClientException {
+		if (closed) {
+			return false;
+		}
+		while (page == null || index >= page.length()) {
+			if (lastPage) {
+				return false;
+			}
+			page = fetchNextPage();
+			index = 0;
+		}
+		return true;
+	}
+
+	public JSONObject next() throws StreamClientException {
+		if (!hasNext()) {
+			throw new StreamClientException("No more search results for " + objCode);
+		}
+		try {
+			return page.getJSONObject(index++);
+		}
+		catch (JSONException e) {
+			throw new StreamClientException(e);
+		}
+	}
+
+	/**
+	 * Stops any background request for the next page. Only needed when the caller
+	 * stops reading before the end of the results.
+	 */
+	public void close() {
+		if (nextPage != null) {
+			nextPage.cancel(true);
+			nextPage = null;
+		}
+		lastPage = true;
+		closed = true;
+		page = null;
+	}
+
+	private JSONArray fetchNextPage() throws StreamClientException {
+		JSONArray results;
+		if (nextPage != null) {
+			try {
+				results = nextPage.get();
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof StreamClientException) {
+					throw (StreamClientException) e.getCause();
+				}
+				throw new StreamClientException(e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StreamClientException(e);
+			}
+			nextPage = null;
+		}
+		else {
+			results = fetchPage(first);
+		}
+
+		// A short page means Workfront has run out of results
+		lastPage = results.length() < pageSize;
+		first += pageSize;
+
+		if (prefetch && !lastPage) {
+			final int nextFirst = first;
+			nextPage = prefetcher.submit(new Callable<JSONArray>() {
+				public JSONArray call() throws StreamClientException {
+					return fetchPage(nextFirst);
+				}
+			});
+		}
+
+		return results;
+	}
+
+	private JSONArray fetchPage(int start) throws StreamClientException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		if (query != null) {
+			params.putAll(query);
+		}
+		params.put(ID_SORT, ASCENDING);
+		params.put(FIRST, start);
+		params.put(LIMIT, pageSize);
+		return client.search(objCode, params, fields);
+	}
+}
@@ -17,6 +17,8 @@ package com.spillman.workfront.api;
  * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -30,17 +32,33 @@ import java.util.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import javax.net.ssl.HostnameVerifier; // located in jsee.jar which is located in your jre/lib directory
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 
 public class StreamClient {
+	private static final Logger logger = LogManager.getLogger();
 
-	private static final String METH_DELETE = "DELETE";
-	private static final String METH_GET    = "GET";
-	private static final String METH_POST   = "POST";
-	private static final String METH_PUT    = "PUT";
+	public static final int DEFAULT_MAX_CONNECTIONS = 5;
+	public static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+	public static final int DEFAULT_TLS_SESSION_TIMEOUT_SECONDS = 1800;
+	public static final int DEFAULT_PAGE_SIZE = 2000; // the most Workfront will return in one search
 
+	static final String METH_DELETE = "DELETE";
+	static final String METH_GET    = "GET";
+	static final String METH_POST   = "POST";
+	static final String METH_PUT    = "PUT";
+
+	private static final String PATH_BATCH  = "/batch";
 	private static final String PATH_LOGIN  = "/login";
 	private static final String PATH_LOGOUT = "/logout";
 	private static final String PATH_SEARCH = "/search";
@@ -51,13 +69,67 @@ public class StreamClient {
 		}
 	};
 
+	// The JDK only reuses a pooled HTTPS connection when the socket factory is the same
+	// instance that created it, so every connection must share this one factory.
+	private static TimingSSLSocketFactory sslSocketFactory = null;
+
 	private String hostname;
 	private String sessionID;
 	private String apikey;
+	private int maxInFlight = DEFAULT_MAX_CONNECTIONS;
+	private Semaphore inFlight = new Semaphore(DEFAULT_MAX_CONNECTIONS, true);
+	private ExecutorService asyncExecutor = null;
 
 	public StreamClient (String hostname) {
+		this(hostname, DEFAULT_MAX_CONNECTIONS, DEFAULT_KEEP_ALIVE_SECONDS, DEFAULT_TLS_SESSION_TIMEOUT_SECONDS);
+	}
+
+	/**
+	 * @param keepAliveSeconds how long an idle connection is kept open for reuse
+	 * @param tlsSessionTimeoutSeconds how long a TLS session can be resumed by a new connection
+	 */
+	public StreamClient (String hostname, int maxConnections, int keepAliveSeconds, int tlsSessionTimeoutSeconds) {
 		this.hostname = hostname;
 		this.apikey = null;
+		configureTransport(maxConnections, keepAliveSeconds, tlsSessionTimeoutSeconds);
+	}
+
+	/**
+	 * Configures the JDK's keep-alive connection cache and the TLS session cache.
+	 * The keep-alive cache reads its settings the first time it is used, so this
+	 * must run before the first request is made.
+	 */
+	private static synchronized void configureTransport (int maxConnections, int keepAliveSeconds, int tlsSessionTimeoutSeconds) {
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+		System.setProperty("http.keepAlive.time.server", Integer.toString(keepAliveSeconds));
+
+		if (sslSocketFactory == null) {
+			try {
+				SSLContext context = SSLContext.getDefault();
+				SSLSessionContext sessions = context.getClientSessionContext();
+				sessions.setSessionCacheSize(maxConnections * 4);
+				sessions.setSessionTimeout(tlsSessionTimeoutSeconds);
+				sslSocketFactory = new TimingSSLSocketFactory(context.getSocketFactory());
+			}
+			catch (NoSuchAlgorithmException e) {
+				logger.catching(e);
+			}
+		}
+	}
+
+	/**
+	 * Sets how many calls, from any thread, may be waiting on Workfront at the same time.
+	 * Calls beyond the limit wait in a queue until one of the running calls finishes.
+	 * This should be set before the client is shared between threads.
+	 */
+	public synchronized void setMaxInFlight (int maxInFlight) {
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+			asyncExecutor = null;
+		}
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.inFlight = new Semaphore(this.maxInFlight, true);
 	}
 
 	public JSONObject login (String username, String apikey) throws StreamClientException {
@@ -91,6 +163,22 @@ public class StreamClient {
 		return (JSONArray) request("/"+objCode+PATH_SEARCH, query, fields, METH_GET);
 	}
 
+	public SearchCursor searchAll (String objCode, Map<String, Object> query, String[] fields) throws StreamClientException {
+		return searchAll(objCode, query, fields, DEFAULT_PAGE_SIZE, false);
+	}
+
+	public SearchCursor searchAll (String objCode, Map<String, Object> query, String[] fields, int pageSize, boolean prefetch) throws StreamClientException {
+		Set<String> fieldSet = (fields == null ? null : new HashSet<String>(Arrays.asList(fields)));
+		return searchAll(objCode, query, fieldSet, pageSize, prefetch);
+	}
+
+	public SearchCursor searchAll (String objCode, Map<String, Object> query, Set<String> fields, int pageSize, boolean prefetch) throws StreamClientException {
+		if (pageSize < 1) {
+			throw new StreamClientException("The page size must be at least 1");
+		}
+		return new SearchCursor(this, objCode, query, fields, pageSize, prefetch);
+	}
+
 	public JSONObject get (String objCode, String objID) throws StreamClientException {
 		return get(objCode, objID, (Set<String>) null);
 	}
@@ -135,14 +223,135 @@ public class StreamClient {
 		return (JSONObject) request("/"+objCode+"/"+objID, params, fields, METH_PUT);
 	}
 	
+	/**
+	 * Updates several objects of the same type in one call. Each map holds the fields
+	 * to change on one object and must include that object's ID.
+	 */
+	public JSONArray bulkPut (String objCode, List<Map<String, Object>> updates) throws StreamClientException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("updates", new JSONArray(updates).toString());
+		return (JSONArray) request("/"+objCode, params, null, METH_PUT);
+	}
+
 	public JSONObject put (String objCode, String objID, String action) throws StreamClientException {
 		return (JSONObject) request("/"+objCode+"/"+objID+"/"+action, null, null, METH_PUT);
 	}
 
+	/**
+	 * Sends several calls to Workfront in a single round trip. In the normal mode each
+	 * operation succeeds or fails on its own, and the returned array holds one result
+	 * per operation, in order. Each result has either a "data" or an "error" member.
+	 * In atomic mode Workfront runs the operations in one transaction and only reports
+	 * whether the whole batch succeeded, so an empty array is returned and a failure
+	 * is thrown as an exception.
+	 */
+	public JSONArray batch (List<BatchOperation> operations, boolean atomic) throws StreamClientException {
+		if (operations.isEmpty()) {
+			return new JSONArray();
+		}
+
+		try {
+			String basePath = new URL(hostname).getPath();
+			StringBuilder query = new StringBuilder("apiKey=" + apikey + "&method=" + METH_POST);
+			for (BatchOperation op : operations) {
+				String uri = basePath + "/" + op.getPath() + "?method=" + op.getMethod() + encodeParameters(op.getParams(), null);
+				query.append("&uri=").append(URLEncoder.encode(uri, "UTF-8"));
+			}
+			if (atomic) {
+				query.append("&atomic=true");
+			}
+
+			Object data = send(PATH_BATCH, query.toString(), METH_POST);
+			if (atomic || !(data instanceof JSONArray)) {
+				return new JSONArray();
+			}
+			return (JSONArray) data;
+		}
+		catch (StreamClientException e) {
+			throw e;
+		}
+		catch (IOException e) {
+			throw new StreamClientException(e);
+		}
+	}
+
 	public boolean delete (String objCode, String objID) throws StreamClientException {
 		return delete(objCode, objID, false);
 	}
 
+	public CompletableFuture<JSONArray> searchAsync (final String objCode, final Map<String, Object> query, final String[] fields) {
+		return async(new Callable<JSONArray>() {
+			public JSONArray call() throws StreamClientException {
+				return search(objCode, query, fields);
+			}
+		});
+	}
+
+	public CompletableFuture<JSONObject> getAsync (final String objCode, final String objID, final String[] fields) {
+		return async(new Callable<JSONObject>() {
+			public JSONObject call() throws StreamClientException {
+				return get(objCode, objID, fields);
+			}
+		});
+	}
+
+	public CompletableFuture<JSONObject> postAsync (final String objCode, final Map<String, Object> message) {
+		return async(new Callable<JSONObject>() {
+			public JSONObject call() throws StreamClientException {
+				return post(objCode, message);
+			}
+		});
+	}
+
+	public CompletableFuture<JSONObject> putAsync (final String objCode, final String objID, final Map<String, Object> message) {
+		return async(new Callable<JSONObject>() {
+			public JSONObject call() throws StreamClientException {
+				return put(objCode, objID, message);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> deleteAsync (final String objCode, final String objID) {
+		return async(new Callable<Boolean>() {
+			public Boolean call() throws StreamClientException {
+				return delete(objCode, objID);
+			}
+		});
+	}
+
+	/**
+	 * Runs a call on the client's worker threads. The calls still use the keep-alive
+	 * connection pool, so the in-flight limit should not be larger than the pool size.
+	 * A StreamClientException thrown by the call completes the future exceptionally.
+	 */
+	private <T> CompletableFuture<T> async (final Callable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		getAsyncExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					future.complete(call.call());
+				}
+				catch (Exception e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
+
+	private synchronized ExecutorService getAsyncExecutor () {
+		if (asyncExecutor == null) {
+			asyncExecutor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "workfront-async");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return asyncExecutor;
+	}
+
 	public boolean delete (String objCode, String objID, boolean force) throws StreamClientException {
 		Map<String, Object> params = new HashMap<String, Object>();
 		params.put("force", force);
@@ -156,32 +365,79 @@ public class StreamClient {
 	}
 
 	private Object request (String path, Map<String, Object> params, Set<String> fields, String method) throws StreamClientException {
-		HttpURLConnection conn = null;
-
 		try {
-			String query = "apiKey=" + apikey + "&method=" + method;
+			return send(path, "apiKey=" + apikey + "&method=" + method + encodeParameters(params, fields), method);
+		}
+		catch (IOException e) {
+			throw new StreamClientException(e);
+		}
+	}
 
-			if (params != null) {
-				for (String key : params.keySet()) {
-					query += "&" + URLEncoder.encode(key, "UTF-8") + "=" + URLEncoder.encode(String.valueOf(params.get(key)), "UTF-8");
+	private String encodeParameters (Map<String, Object> params, Set<String> fields) throws IOException {
+		String query = "";
+
+		if (params != null) {
+			for (String key : params.keySet()) {
+				// A collection is sent as the same parameter repeated, e.g. for an "in" search
+				Object value = params.get(key);
+				if (value instanceof Collection) {
+					for (Object item : (Collection<?>) value) {
+						query += "&" + URLEncoder.encode(key, "UTF-8") + "=" + URLEncoder.encode(String.valueOf(item), "UTF-8");
+					}
+				}
+				else {
+					query += "&" + URLEncoder.encode(key, "UTF-8") + "=" + URLEncoder.encode(String.valueOf(value), "UTF-8");
 				}
 			}
+		}
 
-			if (fields != null) {
-				query += "&fields=";
-				for (String field : fields) {
-					query += URLEncoder.encode(field, "UTF-8") + ",";
-				}
-				query = query.substring(0, query.lastIndexOf(","));
+		if (fields != null) {
+			query += "&fields=";
+			for (String field : fields) {
+				query += URLEncoder.encode(field, "UTF-8") + ",";
 			}
-			
+			query = query.substring(0, query.lastIndexOf(","));
+		}
+
+		return query;
+	}
+
+	private Object send (String path, String query, String method) throws StreamClientException {
+		HttpURLConnection conn = null;
+		boolean reusable = false;
+		RequestTiming timing = new RequestTiming();
+		Semaphore permits = inFlight;
+
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StreamClientException(e);
+		}
+
+		try {
+			TimingSSLSocketFactory.resetHandshakeTime();
+			long start = System.nanoTime();
 			conn = createConnection(hostname + path, method);
+			long connected = System.nanoTime();
+			long tls = TimingSSLSocketFactory.getHandshakeTime();
+			if (tls == TimingSSLSocketFactory.UNKNOWN) {
+				// The handshake happened but its time wasn't reported, so it's counted in the connect time
+				timing.setTlsTimeKnown(false);
+				tls = 0L;
+			}
+			timing.setTlsNanos(tls);
+			timing.setConnectNanos(connected - start - tls);
+			// An HTTPS connection that didn't create a socket came out of the keep-alive pool
+			timing.setReusedConnection(conn instanceof HttpsURLConnection && !TimingSSLSocketFactory.socketCreated());
 			
 			// Send request
 			Writer out = new OutputStreamWriter(conn.getOutputStream());
 			out.write(query);
 			out.flush();
 			out.close();
+			long sent = System.nanoTime();
 
 			// Read response
 			BufferedReader in;
@@ -191,6 +447,8 @@ public class StreamClient {
 			else {
 				in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
 			}
+			long firstByte = System.nanoTime();
+			timing.setFirstByteNanos(firstByte - sent);
 			StringBuilder response = new StringBuilder();
 			String line;
 
@@ -198,7 +456,11 @@ public class StreamClient {
 				response.append(line);
 			}
 
+			// The response has been read to the end, so the connection can go back into the keep-alive pool
 			in.close();
+			reusable = true;
+			timing.setBodyNanos(System.nanoTime() - firstByte);
+			logger.debug("{} {}: {}", method, path, timing);
 
 			// Decode JSON
 			JSONObject result;
@@ -241,9 +503,12 @@ public class StreamClient {
 			throw new StreamClientException(e);
 		}
 		finally {
-			if (conn != null) {
+			// Only close the underlying socket if the exchange failed part way through.
+			// Otherwise leave it open so the next request can reuse it.
+			if (conn != null && !reusable) {
 				conn.disconnect();
 			}
+			permits.release();
 		}
 	}
 
@@ -253,6 +518,9 @@ public class StreamClient {
 
 		if (conn instanceof HttpsURLConnection) {
 			((HttpsURLConnection) conn).setHostnameVerifier(HOSTNAME_VERIFIER);
+			if (sslSocketFactory != null) {
+				((HttpsURLConnection) conn).setSSLSocketFactory(sslSocketFactory);
+			}
 		}
 
 		conn.setAllowUserInteraction(false);
@@ -0,0 +1,135 @@
+package com.spillman.workfront.api;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Wraps the default SSL socket factory so the time spent in the TLS handshake can be
+ * measured separately from the TCP connect. The handshake itself is left to the caller
+ * (HttpsURLConnection), which sets up the SSL parameters and endpoint identification
+ * first. The time runs from when the connected socket is handed to the caller until a
+ * HandshakeCompletedListener reports the handshake finished, and is recorded for the
+ * calling thread. When a pooled connection is reused no socket is created, which
+ * socketCreated() reports.
+ */
+class TimingSSLSocketFactory extends SSLSocketFactory {
+	// The listener is notified on its own thread, shortly after the handshake
+	// finishes, so wait a little for it before giving up on the time
+	private static final long LISTENER_WAIT_MILLIS = 100;
+
+	// Returned by getHandshakeTime() when the handshake wasn't reported in time
+	static final long UNKNOWN = -1L;
+
+	private static final ThreadLocal<Handshake> handshake = new ThreadLocal<Handshake>();
+
+	private SSLSocketFactory delegate;
+
+	TimingSSLSocketFactory(SSLSocketFactory delegate) {
+		this.delegate = delegate;
+	}
+
+	static void resetHandshakeTime() {
+		handshake.remove();
+	}
+
+	/**
+	 * Returns true if this thread created an SSL socket since resetHandshakeTime(),
+	 * so the connection is new rather than reused from the keep-alive pool.
+	 */
+	static boolean socketCreated() {
+		return handshake.get() != null;
+	}
+
+	/**
+	 * Returns the nanoseconds spent in the TLS handshake of the socket this thread
+	 * created since resetHandshakeTime(), zero if it didn't create one, or UNKNOWN
+	 * if it did but the handshake wasn't reported in time. Call it once the
+	 * connection is open.
+	 */
+	static long getHandshakeTime() {
+		Handshake h = handshake.get();
+		if (h == null) {
+			return 0L;
+		}
+		try {
+			if (!h.done.await(LISTENER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+				return UNKNOWN;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return UNKNOWN;
+		}
+		return h.end - h.start;
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		// Unconnected sockets are handshaken later by the caller, so there is nothing to time here
+		return delegate.createSocket();
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		return timeHandshake(delegate.createSocket(s, host, port, autoClose));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return timeHandshake(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return timeHandshake(delegate.createSocket(host, port, localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return timeHandshake(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return timeHandshake(delegate.createSocket(address, port, localAddress, localPort));
+	}
+
+	private Socket timeHandshake(Socket socket) {
+		if (socket instanceof SSLSocket) {
+			final Handshake h = new Handshake();
+			handshake.set(h);
+			((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					event.getSocket().removeHandshakeCompletedListener(this);
+					h.end = System.nanoTime();
+					h.done.countDown();
+				}
+			});
+		}
+		return socket;
+	}
+
+	// One socket's handshake
+	private static class Handshake {
+		final long start = System.nanoTime();
+		volatile long end;
+		final CountDownLatch done = new CountDownLatch(1);
+	}
+}